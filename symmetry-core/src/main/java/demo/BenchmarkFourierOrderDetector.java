@@ -0,0 +1,59 @@
+package demo;
+
+import java.io.IOException;
+
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.StructureTools;
+import org.biojava.nbio.structure.align.model.AFPChain;
+import org.biojava.nbio.structure.align.symm.order.FourierOrderDetector;
+import org.biojava.nbio.structure.align.symm.order.RotationOrderDetector;
+import org.biojava.nbio.structure.align.symm.order.RotationOrderDetector.RotationOrderMethod;
+import org.biojava.nbio.structure.symmetry.internal.CESymmParameters;
+import org.biojava.nbio.structure.symmetry.internal.CeSymm;
+import org.biojava.nbio.structure.symmetry.internal.OrderDetector;
+import org.biojava.nbio.structure.symmetry.internal.RefinerFailedException;
+
+/**
+ * Compares the order and the time per call of the FourierOrderDetector with
+ * SINGLE_CUSP_FIXED_SSE. The structures are given as arguments.
+ */
+public class BenchmarkFourierOrderDetector {
+
+	/** Repetitions of each detector */
+	private static final int REPEATS = 20;
+
+	public static void main(String[] args) throws IOException,
+			StructureException, RefinerFailedException {
+		if (args.length == 0)
+			args = new String[] { "1MER.A", "d1ijqa1", "1TIM.A" };
+
+		FourierOrderDetector fourier = new FourierOrderDetector(8);
+		RotationOrderDetector sse = new RotationOrderDetector(8,
+				RotationOrderMethod.SINGLE_CUSP_FIXED_SSE);
+		CESymmParameters params = new CESymmParameters();
+
+		for (String name : args) {
+			Atom[] ca = StructureTools.getRepresentativeAtomArray(StructureTools
+					.getStructure(name));
+			AFPChain alignment = CeSymm.analyze(ca, params).getSelfAlignment();
+
+			System.out.format("%s\tFourier: C%d %.2f ms\tSSE: C%d %.2f ms%n",
+					name, fourier.calculateOrder(alignment, ca),
+					time(fourier, alignment, ca),
+					sse.calculateOrder(alignment, ca), time(sse, alignment, ca));
+		}
+	}
+
+	/**
+	 * @return the mean time of a call, in milliseconds
+	 */
+	private static double time(OrderDetector detector, AFPChain alignment,
+			Atom[] ca) throws RefinerFailedException {
+		long start = System.nanoTime();
+		for (int i = 0; i < REPEATS; i++)
+			detector.calculateOrder(alignment, ca);
+		return (System.nanoTime() - start) / 1e6 / REPEATS;
+	}
+
+}
@@ -0,0 +1,237 @@
+package org.biojava.nbio.structure.align.symm;
+
+/**
+ * Sparse index of the admissible AFPs of a similarity matrix: the cells with
+ * a score between 0 and a maximum score. Most cells of the matrix are not
+ * admissible, so iterating over the index is much cheaper than scanning the
+ * full matrix.
+ * <p>
+ * The AFPs are stored both in compressed sparse row (CSR) and compressed
+ * sparse column (CSC) format, so that the AFPs of a row or a column can be
+ * iterated in order. Positions are accessed by an index k, from
+ * {@link #rowStart(int)} to {@link #rowEnd(int)} (or {@link #colStart(int)}
+ * to {@link #colEnd(int)}).
+ */
+public class AfpIndex {
+
+	private final int rows;
+	private final int cols;
+
+	// CSR
+	private final int[] rowPtr;
+	private final int[] colIdx;
+	private final double[] rowScores;
+
+	// CSC
+	private final int[] colPtr;
+	private final int[] rowIdx;
+	private final double[] colScores;
+
+	/**
+	 * Index the admissible AFPs of a similarity matrix.
+	 *
+	 * @param mat
+	 *            similarity matrix, with negative values for undefined AFPs
+	 * @param maxScore
+	 *            maximum score of an admissible AFP
+	 */
+	public AfpIndex(double[][] mat, double maxScore) {
+		this(mat, null, null, mat.length, mat.length > 0 ? mat[0].length
+				: 0, maxScore);
+	}
+
+	/**
+	 * Index the admissible AFPs of a symmetric similarity matrix. The CSR and
+	 * CSC formats share the same arrays.
+	 *
+	 * @param mat
+	 *            similarity matrix, with negative values for undefined AFPs
+	 * @param maxScore
+	 *            maximum score of an admissible AFP
+	 */
+	public AfpIndex(PackedSymmetricMatrix mat, double maxScore) {
+		this(null, mat, null, mat.size(), mat.size(), maxScore);
+	}
+
+	/**
+	 * Index the admissible AFPs of a structure against its periodic
+	 * repetition. If the repetition has a single period, the matrix is
+	 * symmetric and the CSR and CSC formats share the same arrays.
+	 *
+	 * @param mat
+	 *            similarity matrix, with negative values for undefined AFPs
+	 * @param maxScore
+	 *            maximum score of an admissible AFP
+	 */
+	public AfpIndex(PeriodicSymmetricMatrix mat, double maxScore) {
+		this(null, null, mat, mat.getRows(), mat.getCols(), maxScore);
+	}
+
+	private AfpIndex(double[][] mat, PackedSymmetricMatrix packed,
+			PeriodicSymmetricMatrix periodic, int rows, int cols,
+			double maxScore) {
+
+		this.rows = rows;
+		this.cols = cols;
+
+		// Count the AFPs of every row
+		rowPtr = new int[rows + 1];
+		for (int i = 0; i < rows; i++) {
+			int n = 0;
+			for (int j = 0; j < cols; j++) {
+				double score = get(mat, packed, periodic, i, j);
+				if (score < 0.0 || score > maxScore)
+					continue;
+				n++;
+			}
+			rowPtr[i + 1] = rowPtr[i] + n;
+		}
+
+		colIdx = new int[rowPtr[rows]];
+		rowScores = new double[rowPtr[rows]];
+		for (int i = 0; i < rows; i++) {
+			int k = rowPtr[i];
+			for (int j = 0; j < cols; j++) {
+				double score = get(mat, packed, periodic, i, j);
+				if (score < 0.0 || score > maxScore)
+					continue;
+				colIdx[k] = j;
+				rowScores[k] = score;
+				k++;
+			}
+		}
+
+		if (packed != null || (periodic != null && rows == cols)) {
+			colPtr = rowPtr;
+			rowIdx = colIdx;
+			colScores = rowScores;
+			return;
+		}
+
+		// Transpose the CSR arrays, rows are visited in order so every column
+		// is sorted
+		colPtr = new int[cols + 1];
+		for (int k = 0; k < colIdx.length; k++)
+			colPtr[colIdx[k] + 1]++;
+		for (int j = 0; j < cols; j++)
+			colPtr[j + 1] += colPtr[j];
+
+		rowIdx = new int[colIdx.length];
+		colScores = new double[colIdx.length];
+		int[] next = new int[cols];
+		System.arraycopy(colPtr, 0, next, 0, cols);
+		for (int i = 0; i < rows; i++) {
+			for (int k = rowPtr[i]; k < rowPtr[i + 1]; k++) {
+				int c = next[colIdx[k]]++;
+				rowIdx[c] = i;
+				colScores[c] = rowScores[k];
+			}
+		}
+	}
+
+	/**
+	 * Element (i,j) of the matrix being indexed, only one of the matrices is
+	 * not null.
+	 */
+	private static double get(double[][] mat, PackedSymmetricMatrix packed,
+			PeriodicSymmetricMatrix periodic, int i, int j) {
+		if (mat != null)
+			return mat[i][j];
+		if (packed != null)
+			return packed.get(i, j);
+		return periodic.get(i, j);
+	}
+
+	/**
+	 * @return the number of rows of the matrix
+	 */
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return the number of columns of the matrix
+	 */
+	public int getCols() {
+		return cols;
+	}
+
+	/**
+	 * @return the number of admissible AFPs
+	 */
+	public int size() {
+		return colIdx.length;
+	}
+
+	public int rowStart(int i) {
+		return rowPtr[i];
+	}
+
+	public int rowEnd(int i) {
+		return rowPtr[i + 1];
+	}
+
+	/**
+	 * @return the column of the k-th AFP in CSR order
+	 */
+	public int col(int k) {
+		return colIdx[k];
+	}
+
+	/**
+	 * @return the score of the k-th AFP in CSR order
+	 */
+	public double rowScore(int k) {
+		return rowScores[k];
+	}
+
+	public int colStart(int j) {
+		return colPtr[j];
+	}
+
+	public int colEnd(int j) {
+		return colPtr[j + 1];
+	}
+
+	/**
+	 * @return the row of the k-th AFP in CSC order
+	 */
+	public int row(int k) {
+		return rowIdx[k];
+	}
+
+	/**
+	 * @return the score of the k-th AFP in CSC order
+	 */
+	public double colScore(int k) {
+		return colScores[k];
+	}
+
+	/**
+	 * @return the CSR position of the first AFP of row i in a column j or
+	 *         higher, {@link #rowEnd(int)} if there is none
+	 */
+	public int findInRow(int i, int j) {
+		return lowerBound(colIdx, rowPtr[i], rowPtr[i + 1], j);
+	}
+
+	/**
+	 * @return the CSC position of the first AFP of column j in a row i or
+	 *         higher, {@link #colEnd(int)} if there is none
+	 */
+	public int findInCol(int j, int i) {
+		return lowerBound(rowIdx, colPtr[j], colPtr[j + 1], i);
+	}
+
+	private static int lowerBound(int[] a, int from, int to, int key) {
+		while (from < to) {
+			int mid = (from + to) >>> 1;
+			if (a[mid] < key)
+				from = mid + 1;
+			else
+				to = mid;
+		}
+		return from;
+	}
+
+}
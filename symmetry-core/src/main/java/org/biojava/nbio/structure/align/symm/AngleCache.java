@@ -0,0 +1,113 @@
+package org.biojava.nbio.structure.align.symm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of the rotation angles between the two fragments of an AFP,
+ * keyed by the AFP positions. It is direct-mapped: every key has a single
+ * slot, and a new angle replaces the one stored in its slot.
+ * <p>
+ * The cache is thread-safe, so the seed workers of a parallel trace share
+ * one cache. Each slot holds an immutable entry with the key and the angle,
+ * so a lookup never sees the key of one angle with the value of another.
+ * Lookups do not allocate. A thread may not see an angle just stored by
+ * another one, and calculates it again, which gives the same angle.
+ */
+public class AngleCache {
+
+	private final int bits;
+	private final Entry[] slots;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	private static class Entry {
+		final long key;
+		final double angle;
+
+		Entry(long key, double angle) {
+			this.key = key;
+			this.angle = angle;
+		}
+	}
+
+	/**
+	 * @param capacity
+	 *            maximum number of angles stored, rounded up to a power of 2
+	 */
+	public AngleCache(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Invalid cache capacity: "
+					+ capacity);
+		int b = 0;
+		while ((1 << b) < capacity && b < 30)
+			b++;
+		bits = b;
+		slots = new Entry[1 << bits];
+	}
+
+	/**
+	 * Remove all the angles, for example when the structures change. The hit
+	 * and miss counters are kept. It must not run concurrently with lookups.
+	 */
+	public void clear() {
+		Arrays.fill(slots, null);
+	}
+
+	private static long key(int mse1, int mse2) {
+		return ((long) mse1 << 32) | (mse2 & 0xffffffffL);
+	}
+
+	private int slot(long key) {
+		if (bits == 0)
+			return 0;
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - bits));
+	}
+
+	/**
+	 * Look up the angle of an AFP.
+	 *
+	 * @return the cached angle, or NaN if it is not in the cache
+	 */
+	public double get(int mse1, int mse2) {
+		long key = key(mse1, mse2);
+		Entry entry = slots[slot(key)];
+		if (entry != null && entry.key == key) {
+			hits.increment();
+			return entry.angle;
+		}
+		misses.increment();
+		return Double.NaN;
+	}
+
+	/**
+	 * Store the angle of an AFP, replacing the angle that used the same slot.
+	 */
+	public void put(int mse1, int mse2, double angle) {
+		long key = key(mse1, mse2);
+		slots[slot(key)] = new Entry(key, angle);
+	}
+
+	/**
+	 * @return the maximum number of angles stored
+	 */
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	/**
+	 * @return the number of lookups that found the angle
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of lookups that did not find the angle
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+}
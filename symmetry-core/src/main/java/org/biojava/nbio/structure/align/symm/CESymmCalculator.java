@@ -1,56 +1,526 @@
 package org.biojava.nbio.structure.align.symm;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
 import javax.vecmath.Matrix4d;
 import javax.vecmath.Point3d;
 
 import org.biojava.nbio.structure.Atom;
 import org.biojava.nbio.structure.Calc;
+import org.biojava.nbio.structure.StructureException;
 import org.biojava.nbio.structure.align.ce.CECalculator;
 import org.biojava.nbio.structure.align.ce.CeParameters;
+import org.biojava.nbio.structure.align.ce.CeParameters.ScoringStrategy;
 import org.biojava.nbio.structure.align.model.AFPChain;
 import org.biojava.nbio.structure.align.util.RotationAxis;
 import org.biojava.nbio.structure.geometry.SuperPositions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * This is an experimental version of CECalculator that aims at improving the
  * computational complexity of CESymm at least half (by using only upper
  * diagonal of the similarity matrix.
+ * <p>
+ * With {@link #setPackedStorage(boolean) packed storage} enabled, the
+ * similarity matrix of a self-alignment, also against the duplicated atoms of
+ * CE-Symm, is kept in a {@link PeriodicSymmetricMatrix} and the distance
+ * matrix in a {@link PackedSymmetricMatrix}, instead of the full double[][]
+ * arrays of CECalculator. Otherwise, the distance matrices are stored as
+ * {@link FlatDistanceMatrix} objects (see {@link #setFlatStorage(boolean)}).
+ * AFPs can be removed from the trace in place with
+ * {@link #maskAfp(int, int)}.
+ * In both cases, self-alignments use a single distance matrix for both
+ * structures (see {@link #setSharedDistances(boolean)}).
+ * <p>
+ * Large structures can be traced in a {@link #setCoarseStep(int)
+ * coarse-to-fine mode}, which only traces the AFPs close to the best trace
+ * of the downsampled structures.
+ * <p>
+ * The seeds of the first iteration of the trace can be explored in parallel
+ * by setting a {@link #setSeedPool(ForkJoinPool) seed pool}. The result is
+ * the same as the serial trace.
+ * <p>
+ * The trace stops when its {@link TraceBudget} runs out, keeping the best
+ * trace found so far. The work done by the trace can be counted with
+ * {@link TraceStatistics}. The angles calculated by superposition are kept
+ * in an {@link AngleCache}, because many traces go through the same AFPs.
  * 
  * @author Aleix Lafita
  *
  */
 public class CESymmCalculator extends CECalculator {
 
+	private static final Logger logger = LoggerFactory
+			.getLogger(CESymmCalculator.class);
+
+	/**
+	 * Method used to calculate the rotation angle between the two fragments
+	 * of an AFP during the trace extension.
+	 */
+	public static enum AngleMethod {
+		/**
+		 * Superimpose the atoms of both fragments (exact but slow, the
+		 * default).
+		 */
+		SUPERPOSITION,
+		/**
+		 * Compare the precomputed local frames of both fragments, see
+		 * {@link FragmentFrames}. Fragments without a defined frame are
+		 * superimposed. The frame angle approximates the superposition angle,
+		 * so some AFPs near the {@link #MIN_ANGLE} limit are accepted or
+		 * rejected differently, and the alignment can change.
+		 */
+		FRAMES,
+		/**
+		 * Use the frames, but also superimpose the fragments and count the
+		 * cases where both methods disagree on the {@link #MIN_ANGLE} check.
+		 * The angle from the superposition is used.
+		 */
+		VALIDATE,
+	}
+
+	/**
+	 * Minimum rotation angle between the fragments of an AFP extending a
+	 * trace, in degrees
+	 */
 	public static final int MIN_ANGLE = 20;
+	/** {@link #MIN_ANGLE} in radians, the unit of the calculated angles */
+	private static final double MIN_ANGLE_RADIANS = Math.toRadians(MIN_ANGLE);
+
+	private static final int BEST_TRACES_MAX = 30;
+	/** Initial length of the lazily allocated rows of the trace scores */
+	private static final int MIN_TRACE_SCORE_ROW = 64;
+
+	/** Default number of angles in the {@link AngleCache} */
+	public static final int DEFAULT_ANGLE_CACHE_SIZE = 1 << 16;
+
+	/** The deadline of the budget is checked every 4096 traces */
+	private static final int DEADLINE_CHECK_MASK = 0xfff;
+	/** Number of seed blocks per thread of the pool, to balance the load */
+	private static final int BLOCKS_PER_THREAD = 4;
+
+	/** Default half-width of the band around the coarse trace, in residues */
+	public static final int DEFAULT_COARSE_BAND = 10;
+	/** Smallest fragment length of the coarse trace */
+	private static final int MIN_COARSE_WIN_SIZE = 3;
 
 	Atom origin1 = null;
 	Atom origin2 = null;
 
+	private AngleMethod angleMethod = AngleMethod.SUPERPOSITION;
+	private boolean packedStorage = false;
+	private boolean flatStorage = true;
+	private boolean sharedDistances = true;
+	private boolean pruning = true;
+	private int coarseStep = 1;
+	private int coarseBand = DEFAULT_COARSE_BAND;
+	private boolean coarseValidation = false;
+	private boolean coarseMismatch;
+	/**
+	 * Columns [bandStart[i], bandEnd[i]) of the AFPs of row i that are kept
+	 * in the coarse-to-fine mode, null if all the AFPs are kept. If ca2 is
+	 * periodic, the same columns are kept in every period, see
+	 * {@link #isInBand(int[], int[], int, int, int)}.
+	 */
+	private int[] bandStart;
+	private int[] bandEnd;
+	/** Full-resolution calculator used to validate the coarse-to-fine trace */
+	private CESymmCalculator coarseReference;
+	private FlatDistanceMatrix flatDist1;
+	private FlatDistanceMatrix flatDist2;
+	/**
+	 * Position in flatDist2 of every atom of ca2, only set if ca2 is a
+	 * periodic copy of the atoms of flatDist2.
+	 */
+	private int[] wrap2;
+	/** Period of ca2 as a repetition of ca1, 0 if it is not periodic */
+	private int period;
+	private boolean packedMatrix;
+	private PeriodicSymmetricMatrix packedMat;
+	private PackedSymmetricMatrix packedDist1;
+	private PackedSymmetricMatrix packedDist2;
+	private FragmentFrames frames1;
+	private FragmentFrames frames2;
+	private int angleMismatches;
+	private int angleCacheSize = DEFAULT_ANGLE_CACHE_SIZE;
+	private AngleCache angleCache;
+	private ForkJoinPool seedPool;
+	private TraceBudget traceBudget;
+	private boolean truncated;
+	private TraceStatistics traceStatistics;
+
+	// state of the trace
+	private Point3d[] points1;
+	private Point3d[] points2;
+	private AfpIndex afps;
+	private int[] traceIndex;
+	private int[] traceIterLevel;
+	/**
+	 * Weight of the first i+1 AFPs in the score of a trace, the
+	 * traceIndexContainer of CECalculator, which is only set by
+	 * CECalculator.extractFragments.
+	 */
+	private long[] traceWeights;
+	/**
+	 * Score of the trace for each depth and extension index. Without a gap
+	 * limit the rows are allocated when needed, and only grow up to the
+	 * largest extension index used.
+	 */
+	private double[][] traceScore;
+	private int iterDepth;
+	private int newBestTrace;
+	private int nBestTrace0;
+	private TraceBudget budget;
+	private int maxTraces;
+	/** Null if the statistics are disabled */
+	private TraceStatistics statistics;
+	/** Only set for seed workers, which log the extensions */
+	private TraceLog traceLog;
+
 	public CESymmCalculator(CeParameters params) {
 		super(params);
 
 	}
 
+	@Override
+	public AFPChain extractFragments(AFPChain afpChain, Atom[] ca1,
+			Atom[] ca2) throws StructureException {
+
+		packedMat = null;
+		packedDist1 = null;
+		packedDist2 = null;
+		flatDist1 = null;
+		flatDist2 = null;
+		wrap2 = null;
+		bandStart = null;
+		bandEnd = null;
+		coarseReference = null;
+		packedMatrix = false;
+		period = getPeriod(ca1, ca2);
+
+		if (coarseStep > 1)
+			traceCoarse(afpChain, ca1, ca2);
+
+		// the band is not symmetric, so it disables the packed storage
+		boolean packed = packedStorage && bandStart == null && period > 0;
+
+		if (params.getScoringStrategy() != ScoringStrategy.CA_SCORING
+				|| (!packed && !flatStorage)) {
+			super.extractFragments(afpChain, ca1, ca2);
+			if (bandStart != null)
+				applyBand(mat);
+			return afpChain;
+		}
+
+		afpChain.setCa1Length(ca1.length);
+		afpChain.setCa2Length(ca2.length);
+
+		int winSize = params.getWinSize();
+		int winSizeComb1 = (winSize - 1) * (winSize - 2) / 2;
+
+		if (!packed) {
+			flatDist1 = new FlatDistanceMatrix(ca1);
+			if (sharedDistances && period > 0) {
+				// a single matrix for both structures
+				flatDist2 = flatDist1;
+				wrap2 = initWrap(ca1.length, ca2.length);
+			} else
+				flatDist2 = new FlatDistanceMatrix(ca2);
+			mat = initSumOfDistances(flatDist1, flatDist2, wrap2, bandStart,
+					bandEnd, period, winSize, winSizeComb1);
+			setDist1(null);
+			setDist2(null);
+			return afpChain;
+		}
+
+		// ca2 repeats the coordinates of ca1, so they share the distances
+		packedDist1 = initIntraDistances(ca1);
+		packedDist2 = packedDist1;
+		wrap2 = initWrap(ca1.length, ca2.length);
+		packedMat = initSumOfDistances(packedDist1, ca2.length, winSize,
+				winSizeComb1);
+		packedMatrix = true;
+
+		// the full matrices are not needed for the trace
+		mat = null;
+		setDist1(null);
+		setDist2(null);
+
+		return afpChain;
+	}
+
+	/**
+	 * Position of every atom of a periodic ca2 in the atoms of ca1, or null
+	 * if both have the same length.
+	 */
+	private static int[] initWrap(int n1, int n2) {
+		if (n2 == n1)
+			return null;
+		int[] wrap = new int[n2];
+		for (int i = 0; i < n2; i++)
+			wrap[i] = i % n1;
+		return wrap;
+	}
+
+	/**
+	 * Trace the structures downsampled to one atom every
+	 * {@link #setCoarseStep(int) coarse step}, with shorter fragments, and set
+	 * the band of AFPs around the best coarse trace. The band is not set if
+	 * the downsampled structures are too short or have no coarse trace.
+	 */
+	private void traceCoarse(AFPChain afpChain, Atom[] ca1, Atom[] ca2)
+			throws StructureException {
+
+		int winSize = params.getWinSize();
+		int coarseWinSize = Math.max(MIN_COARSE_WIN_SIZE,
+				(winSize + coarseStep / 2) / coarseStep);
+		Atom[] coarse1 = downsample(ca1, coarseStep);
+		Atom[] coarse2 = downsample(ca2, coarseStep);
+		if (Math.min(coarse1.length, coarse2.length) < 4 * coarseWinSize) {
+			logger.debug("Structures too short for the coarse trace");
+			return;
+		}
+
+		CeParameters coarseParams = new CeParameters();
+		coarseParams.setWinSize(coarseWinSize);
+		int gapMax = params.getMaxGapSize();
+		if (gapMax > 0)
+			gapMax = Math.max(1, gapMax / coarseStep);
+		coarseParams.setMaxGapSize(gapMax);
+		coarseParams.setRmsdThr(params.getRmsdThr());
+		coarseParams.setRmsdThrJoin(params.getRmsdThrJoin());
+		coarseParams.setMaxOptRMSD(params.getMaxOptRMSD());
+		coarseParams.setScoringStrategy(ScoringStrategy.CA_SCORING);
+
+		CESymmCalculator coarse = new CESymmCalculator(coarseParams);
+		copySettings(coarse);
+		coarse.extractFragments(afpChain, coarse1, coarse2);
+		if (period > 0)
+			maskCoarseIdentity(coarse, coarse1.length, coarse2.length);
+		coarse.traceFragmentMatrix(afpChain, coarse1, coarse2);
+		if (coarse.nBestTrace == 0) {
+			// an empty band would remove all the AFPs
+			logger.debug("No coarse trace, tracing at full resolution");
+			return;
+		}
+
+		initBand(coarse.nBestTrace, coarse.bestTrace1, coarse.bestTrace2,
+				coarseWinSize * coarseStep, ca1.length, ca2.length);
+		logger.debug("Coarse trace with {} AFPs", coarse.nBestTrace);
+
+		if (coarseValidation) {
+			coarseReference = new CESymmCalculator(params);
+			copySettings(coarseReference);
+			coarseReference.coarseStep = 1;
+			coarseReference.traceBudget = new TraceBudget();
+			coarseReference.traceStatistics = new TraceStatistics();
+			coarseReference.extractFragments(afpChain, ca1, ca2);
+		}
+	}
+
+	/**
+	 * Remove the coarse AFPs closer than a fragment to the identity alignment
+	 * of a self-alignment. CE-Symm masks them in the full similarity matrix,
+	 * but only after the coarse trace, which would otherwise follow them.
+	 */
+	private void maskCoarseIdentity(CESymmCalculator coarse, int nse1,
+			int nse2) {
+		int winSize = params.getWinSize();
+		for (int i = 0; i < nse1; i++) {
+			for (int j = 0; j < nse2; j++) {
+				int d = ((j - i) * coarseStep % period + period) % period;
+				if (d < winSize || period - d < winSize)
+					coarse.maskAfp(i, j);
+			}
+		}
+	}
+
+	/**
+	 * Copy the configuration of the trace to another calculator.
+	 */
+	private void copySettings(CESymmCalculator other) {
+		other.angleMethod = angleMethod;
+		other.flatStorage = flatStorage;
+		other.sharedDistances = sharedDistances;
+		other.pruning = pruning;
+		other.angleCacheSize = angleCacheSize;
+		other.seedPool = seedPool;
+		other.traceBudget = traceBudget;
+		other.traceStatistics = traceStatistics;
+	}
+
+	private static Atom[] downsample(Atom[] ca, int step) {
+		Atom[] sample = new Atom[(ca.length + step - 1) / step];
+		for (int i = 0; i < sample.length; i++)
+			sample[i] = ca[i * step];
+		return sample;
+	}
+
+	/**
+	 * Set the band of AFPs around the best coarse trace. The coarse AFPs
+	 * start at positions best1[k]*coarseStep, best2[k]*coarseStep and cover
+	 * span residues. Between two AFPs, the band covers the columns from the
+	 * end of the first to the start of the second.
+	 */
+	private void initBand(int nBest, int[] best1, int[] best2, int span,
+			int nse1, int nse2) {
+
+		bandStart = new int[nse1];
+		bandEnd = new int[nse1];
+
+		// lowest and highest column of the coarse trace at each row, both
+		// increase with the row
+		int first = best1[0] * coarseStep;
+		int end = Math.min(nse1, best1[nBest - 1] * coarseStep + span);
+		int[] low = new int[end - first];
+		int[] high = new int[end - first];
+		for (int k = 0; k < nBest; k++) {
+			int s1 = best1[k] * coarseStep;
+			int s2 = best2[k] * coarseStep;
+			int e1 = k + 1 < nBest ? best1[k + 1] * coarseStep : end;
+			for (int i = s1; i < e1; i++) {
+				if (i < s1 + span) {
+					low[i - first] = s2 + i - s1;
+					high[i - first] = s2 + i - s1;
+				} else {
+					low[i - first] = s2 + span - 1;
+					high[i - first] = best2[k + 1] * coarseStep;
+				}
+			}
+		}
+
+		for (int i = 0; i < nse1; i++) {
+			int from = Math.max(i - coarseBand, first);
+			int to = Math.min(i + coarseBand, end - 1);
+			if (from > to)
+				continue;
+			bandStart[i] = Math.max(0, low[from - first] - coarseBand);
+			bandEnd[i] = Math.min(nse2, high[to - first] + coarseBand + 1);
+		}
+	}
+
+	/**
+	 * Remove the AFPs outside of the band from a similarity matrix.
+	 */
+	private void applyBand(double[][] matrix) {
+		for (int i = 0; i < matrix.length; i++) {
+			double[] row = matrix[i];
+			for (int j = 0; j < row.length; j++) {
+				if (!isInBand(bandStart, bandEnd, period, i, j))
+					row[j] = -1.0;
+			}
+		}
+	}
+
+	/**
+	 * Whether the AFP (i,j) is inside the band of the coarse trace. If the
+	 * second structure has a period, the band is repeated in every period,
+	 * because the alignment found by the coarse trace in one period can be
+	 * traced further in another one.
+	 */
+	private static boolean isInBand(int[] bandStart, int[] bandEnd,
+			int period, int i, int j) {
+		if (period == 0)
+			return j >= bandStart[i] && j < bandEnd[i];
+		int offset = ((j - bandStart[i]) % period + period) % period;
+		return offset < bandEnd[i] - bandStart[i];
+	}
+
+	@Override
+	public void nextStep(AFPChain afpChain, Atom[] ca1, Atom[] ca2)
+			throws StructureException {
+		// CECalculator uses mat as a working matrix during the optimization,
+		// the packed matrix is not needed after the trace
+		packedMat = null;
+		if (mat == null)
+			mat = new double[ca1.length][ca2.length];
+		super.nextStep(afpChain, ca1, ca2);
+	}
+
 	@Override
 	public void traceFragmentMatrix(AFPChain afpChain, Atom[] ca1, Atom[] ca2) {
 
+		traceAfps(ca1, ca2);
+
+		coarseMismatch = false;
+		if (coarseReference != null) {
+			coarseReference.traceFragmentMatrix(afpChain, ca1, ca2);
+			coarseMismatch = !hasSameBestTrace(coarseReference);
+			if (coarseMismatch)
+				logger.info("The coarse-to-fine trace has {} AFPs, the "
+						+ "full-resolution trace has {} AFPs", nBestTrace,
+						coarseReference.nBestTrace);
+			coarseReference = null;
+		}
+	}
+
+	private boolean hasSameBestTrace(CESymmCalculator other) {
+		if (nBestTrace != other.nBestTrace
+				|| bestTraceScore != other.bestTraceScore)
+			return false;
+		for (int i = 0; i < nBestTrace; i++) {
+			if (bestTrace1[i] != other.bestTrace1[i]
+					|| bestTrace2[i] != other.bestTrace2[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Find the best traces through the admissible AFPs.
+	 */
+	private void traceAfps(Atom[] ca1, Atom[] ca2) {
+
+		budget = traceBudget;
+		if (budget == null)
+			budget = new TraceBudget();
+		budget.start();
+		maxTraces = (int) Math.min(budget.getMaxTraces(),
+				Integer.MAX_VALUE - 1);
+		truncated = false;
+
+		statistics = traceStatistics;
+
 		// vecmath versions of points
 		// TODO Improve speed by using vecmath functions
-		Point3d[] points1 = Calc.atomsToPoints(ca1);
-		Point3d[] points2 = Calc.atomsToPoints(ca2);
-		
-		double rmsdThr = params.getRmsdThr();
+		points1 = Calc.atomsToPoints(ca1);
+		points2 = Calc.atomsToPoints(ca2);
+
+		// local frames of every window, used for the angle check
+		frames1 = null;
+		frames2 = null;
+		angleMismatches = 0;
+		angleCache = null;
+		if (angleCacheSize > 0)
+			angleCache = new AngleCache(angleCacheSize);
+		if (angleMethod != AngleMethod.SUPERPOSITION) {
+			frames1 = new FragmentFrames(points1, params.getWinSize());
+			if (ca1 == ca2)
+				frames2 = frames1;
+			else
+				frames2 = new FragmentFrames(points2, params.getWinSize());
+		}
+
+		// index of the AFPs that can start or extend a trace
+		double maxAfpScore = Math.min(params.getRmsdThr(),
+				params.getMaxOptRMSD());
+		if (packedMat != null)
+			afps = new AfpIndex(packedMat, maxAfpScore);
+		else
+			afps = new AfpIndex(mat, maxAfpScore);
 
 		double oldBestTraceScore = 10000.0;
 		bestTraceScore = 100.0;
 		nBestTrace = 0;
-		int nBestTrace0 = 0;
+		nBestTrace0 = 0;
 		int winSize = params.getWinSize();
-		int winSizeComb1 = (winSize - 1) * (winSize - 2) / 2;
-		boolean distAll = false;
-
-		int winSizeComb2 = distAll ? winSize * winSize : winSize;
-		double rmsdThrJoin = params.getRmsdThrJoin();
 
 		double z0;
 
@@ -65,62 +535,27 @@ public class CESymmCalculator extends CECalculator {
 
 		bestTrace1 = new int[traceMaxSize];
 		bestTrace2 = new int[traceMaxSize];
-		trace1 = new int[traceMaxSize];
-		trace2 = new int[traceMaxSize];
-
-		int[] traceIndex = new int[traceMaxSize];
-		int[] traceIterLevel = new int[traceMaxSize];
+		initTraceBuffers(traceMaxSize);
+		traceWeights = initTraceWeights(traceMaxSize, winSize);
 
 		int ise11;
 		int ise12;
 		int ise21;
 		int ise22;
 
-		int ise1;
-		int ise2;
-
-		int gapMax = params.getMaxGapSize();
-
-		int iterDepth;
-		if (gapMax > 0) {
-			iterDepth = gapMax * 2 + 1;
-		} else {
-			iterDepth = traceMaxSize;
-		}
-		double[][] traceScore = new double[traceMaxSize][iterDepth];
-
 		nTraces = 0;
-		long tracesLimit = (long) 5e7;
-		double score = -1;
-		double score0 = -1;
-		double score1 = -1;
-		double score2 = -1;
-
-		int mse1;
-		int mse2;
-		int jgap;
-		int jdir;
-		int jse1 = 0;
-		int jse2 = 0;
 
-		int bestTracesMax = 30;
-		bestTraces1 = new int[bestTracesMax][traceMaxSize];
-		bestTraces2 = new int[bestTracesMax][traceMaxSize];
-		bestTracesN = new int[bestTracesMax];
-		bestTracesScores = new double[bestTracesMax];
-		for (int it = 0; it < bestTracesMax; it++) {
+		bestTraces1 = new int[BEST_TRACES_MAX][traceMaxSize];
+		bestTraces2 = new int[BEST_TRACES_MAX][traceMaxSize];
+		bestTracesN = new int[BEST_TRACES_MAX];
+		bestTracesScores = new double[BEST_TRACES_MAX];
+		for (int it = 0; it < BEST_TRACES_MAX; it++) {
 			bestTracesN[it] = 0;
 			bestTracesScores[it] = 100;
 		}
 
 		nBestTraces = 0;
-		int newBestTrace = 0;
-
-		double traceTotalScore = 0;
-		double traceScoreMax = 0;
-		double userRMSDMax = params.getMaxOptRMSD();
-		int kse1;
-		int kse2;
+		newBestTrace = 0;
 
 		//iterLoop:
 		for (int iter = 0; iter < nIter; iter++) {
@@ -175,239 +610,26 @@ public class CESymmCalculator extends CECalculator {
 
 			// System.out.println("ise1Loop: " + ise11 + " " + ise12 + " " +
 			// ise21 + " " + ise22);
-			//ise1Loop:
-			for (int ise1_ = ise11; ise1_ < ise12; ise1_++) {
-				ise2Loop: for (int ise2_ = ise21; ise2_ < ise22; ise2_++) {
-
-					ise1 = ise1_;
-					ise2 = ise2_;
-					if (iter > 1 && ise1 == ise11 + 1 && ise2 == ise21 + 1)
-						continue ise2Loop;
-
-					// if(ise2==ise21)
-					// System.out.println(String.format("(%d, %d)",ise1,
-					// nTraces));
-
-					if (iter == 0
-							&& (ise1 > nse1 - winSize * (nBestTrace - 1) || ise2 > nse2
-									- winSize * (nBestTrace - 1)))
-						continue ise2Loop;
-
-					if (mat[ise1][ise2] < 0.0)
-						continue ise2Loop;
-					if (mat[ise1][ise2] > rmsdThr)
-						continue ise2Loop;
-					if (mat[ise1][ise2] > userRMSDMax)
-						continue ise2Loop;
-					nTrace = 0;
-					trace1[nTrace] = ise1;
-					trace2[nTrace] = ise2;
-					traceIndex[nTrace] = 0;
-					traceIterLevel[nTrace] = 0;
-
-					score0 = mat[ise1][ise2];
-
-					nTrace++;
-					boolean isTraceUp = true;
-					int traceIndex_ = 0;
-
-					traceLoop: while (nTrace > 0) {
-
-						kse1 = trace1[nTrace - 1] + winSize;
-						kse2 = trace2[nTrace - 1] + winSize;
-
-						// System.out.println("isTraceUp " + isTraceUp + " " +
-						// nTrace + " " + kse1 + " " + kse2);
-
-						while (true) {
-							if (kse1 > nse1 - winSize - 1)
-								break;
-							if (kse2 > nse2 - winSize - 1)
-								break;
-							if (mat[kse1][kse2] >= 0.0)
-								break;
-							kse1++;
-							kse2++;
-						}
-
-						traceIndex_ = -1;
-
-						if (isTraceUp) {
-
-							int nBestExtTrace = nTrace;
-							double bestExtScore = 100.0;
-
-							// extension of the alignment path
-							// condition 4, 5
-							itLoop: for (int it = 0; it < iterDepth; it++) {
-
-								jgap = (it + 1) / 2;
-								jdir = (it + 1) % 2;
-
-								if (jdir == 0) {
-									mse1 = kse1 + jgap;
-									mse2 = kse2;
-								} else {
-									mse1 = kse1;
-									mse2 = kse2 + jgap;
-								}
-
-								if (mse1 > nse1 - winSize - 1)
-									continue itLoop;
-								if (mse2 > nse2 - winSize - 1)
-									continue itLoop;
-
-								if (mat[mse1][mse2] < 0.0)
-									continue itLoop;
-								if (mat[mse1][mse2] > rmsdThr)
-									continue itLoop;
-								if (mat[mse1][mse2] > userRMSDMax)
-									continue itLoop;
-
-								nTraces++;
-								if (nTraces > tracesLimit) {
-
-									return;
-								}
-
-								score = 0.0;
-
-								// if(!distAll) {
-								// System.out.println("getting score " + mse1 +
-								// " " + mse2 + " " + winSize + " " + jgap + " "
-								// + jdir + " " + it + " " + kse1 + " " + kse2);
-								score = getScoreFromDistanceMatrices(mse1,
-										mse2, winSize);
-								// System.out.println("got score: " + score);
-								score1 = score / (nTrace * winSize);
-
-								// } else {
-								// // all dist
-								// for(int itrace=0; itrace<nTrace; itrace++) {
-								// for(int is1=0; is1<winSize; is1++)
-								// for(int is2=0; is2<winSize; is2++)
-								// score+=Math.abs(dist1[trace1[itrace]+is1][mse1+is2]-
-								// dist2[trace2[itrace]+is1][mse2+is2]);
-								// }
-								// score1=score/(nTrace*winSize*winSize);
-								// }
-
-								// System.out.println("up: " + nTrace + " " +
-								// score + " " + score0 + " " + score1 + " " +
-								// winSize + " " + traceIndex_ + " " + it +
-								// " ");
-								if (score1 > rmsdThrJoin)
-									continue itLoop;
-								if (score1 > userRMSDMax)
-									continue itLoop;
-
-								double angle = checkAngle(mse1, mse2, points1, points2,
-										winSize);
-								if (angle < MIN_ANGLE)
-									continue itLoop;
-
-								score2 = score1;
-
-								// this just got checked, no need to check
-								// again..
-								// if(score2>rmsdThrJoin)
-								// continue itLoop;
-
-								if (nTrace > nBestExtTrace
-										|| (nTrace == nBestExtTrace && score2 < bestExtScore)) {
-									// System.out.println("setting traceindex to "
-									// + it + " " + score2);
-									bestExtScore = score2;
-									nBestExtTrace = nTrace;
-									traceIndex_ = it;
-									traceScore[nTrace - 1][traceIndex_] = score1;
-								}
-
-							}
-						}
-
-						if (traceIndex_ != -1) {
-							jgap = (traceIndex_ + 1) / 2;
-							jdir = (traceIndex_ + 1) % 2;
-							if (jdir == 0) {
-								jse1 = kse1 + jgap;
-								jse2 = kse2;
-							} else {
-								jse1 = kse1;
-								jse2 = kse2 + jgap;
-							}
-
-							if (iter == 0) {
-
-								score1 = (traceScore[nTrace - 1][traceIndex_]
-										* winSizeComb2 * nTrace + mat[jse1][jse2]
-										* winSizeComb1)
-										/ (winSizeComb2 * nTrace + winSizeComb1);
-
-								score2 = getScore2(jse1, jse2, traceScore,
-										traceIndex_, traceIndex, winSizeComb1,
-										winSizeComb2, score0, score1);
-
-								if (score2 > rmsdThrJoin)
-									traceIndex_ = -1;
-								else if (score2 > userRMSDMax)
-									traceIndex_ = -1;
-								else {
-									traceScore[nTrace - 1][traceIndex_] = score2;
-
-									traceTotalScore = score2;
-								}
-
-							} else {
-								if (traceScoreMax > rmsdThrJoin
-										&& nBestTrace >= nBestTrace0)
-									traceIndex_ = -1;
-								traceTotalScore = traceScoreMax;
-							}
-						}
-
-						// System.out.println("middle: " + nTrace + " " + score
-						// + " " + score0 + " " + score1 + "  " + score2 + " " +
-						// traceIndex_);
-
-						if (traceIndex_ == -1) {
-							// System.out.println("continue traceLoop " +
-							// nTrace);
-							// if(iterLevel==1) break;
-							nTrace--;
-							isTraceUp = false;
-							continue traceLoop;
-						} else {
-							traceIterLevel[nTrace - 1]++;
-							trace1[nTrace] = jse1;
-							trace2[nTrace] = jse2;
-							traceIndex[nTrace] = traceIndex_;
-							traceIterLevel[nTrace] = 0;
-							nTrace++;
-							isTraceUp = true;
-
-							if (nTrace > nBestTrace
-									|| (nTrace == nBestTrace && bestTraceScore > traceTotalScore)) {
-
-								for (int itrace = 0; itrace < nTrace; itrace++) {
-									bestTrace1[itrace] = trace1[itrace];
-									bestTrace2[itrace] = trace2[itrace];
-								}
-								bestTraceScore = traceTotalScore;
-								nBestTrace = nTrace;
-							}
-
-							if (iter == 0) {
-								// System.out.println("doing iter0 " +
-								// newBestTrace + " " + traceTotalScore + " " +
-								// bestTracesMax);
-								newBestTrace = doIter0(newBestTrace,
-										traceTotalScore, bestTracesMax);
-
-							}
-						}
-					}
-				}
+			int width = ise22 - ise21;
+			int nSeeds = (ise12 - ise11) * width;
+
+			long iterStart = statistics != null ? System.nanoTime() : 0;
+
+			boolean completed;
+			if (iter == 0 && seedPool != null)
+				completed = traceSeedsParallel(ise11, ise21, width, nSeeds);
+			else
+				completed = traceSeeds(iter, ise11, ise21, width, 0, nSeeds);
+
+			if (statistics != null)
+				statistics.addIterTime(iter, System.nanoTime() - iterStart);
+			if (!completed) {
+				// the best trace so far is kept
+				logger.info("Trace truncated after {} traces, best trace "
+						+ "has {} AFPs", nTraces, nBestTrace);
+				truncated = true;
+				budget.setTruncated();
+				return;
 			}
 
 			if (isPrint) {
@@ -417,27 +639,6 @@ public class CESymmCalculator extends CECalculator {
 
 		}
 
-		// try {
-		// Matrix m2 = new Matrix(traceScore).copy();
-		// JPanel panel = GuiWrapper.getScaleableMatrixPanel(m2);
-		// JFrame frame = new JFrame();
-		// frame.addWindowListener(new WindowAdapter(){
-		// public void windowClosing(WindowEvent e){
-		// JFrame f = (JFrame) e.getSource();
-		// f.setVisible(false);
-		// f.dispose();
-		// }
-		// });
-		//
-		//
-		// frame.getContentPane().add(panel);
-		//
-		// frame.pack();
-		// frame.setVisible(true);
-		// } catch (Exception e) {
-		// e.printStackTrace();
-		// }
-
 		if (params.isShowAFPRanges()) {
 			System.out.println("fragment length: " + params.getWinSize());
 			System.out.println("ntraces : " + nTraces);
@@ -447,43 +648,1432 @@ public class CESymmCalculator extends CECalculator {
 	}
 
 	/**
-	 * do a SVN of the AFPs at positions mse1, mse2. Returns the rotation angle
-	 * between the AFPs
-	 * 
-	 * @param mse1
-	 * @param mse2
-	 * @param ca1
-	 * @param ca2
-	 * @param winSize
-	 * @return
+	 * Allocate the buffers of the trace currently being extended.
 	 */
-	private double checkAngle(int mse1, int mse2, Point3d[] ca1, Point3d[] ca2,
-			int winSize) {
-		try {
-			// length of next window
-			// TODO Doesn't the -1 skip the last residue? -Spencer 2018-12-27
-			int max1 = Math.min(ca1.length - mse1 - 1, winSize);
-			int max2 = Math.min(ca2.length - mse2 - 1, winSize);
-			int maxAtoms = Math.min(max1, max2);
+	private void initTraceBuffers(int traceMaxSize) {
+		trace1 = new int[traceMaxSize];
+		trace2 = new int[traceMaxSize];
+		traceIndex = new int[traceMaxSize];
+		traceIterLevel = new int[traceMaxSize];
 
-			// Extract fragments
- 			Point3d[] cod1 = new Point3d[maxAtoms];
-			Point3d[] cod2 = new Point3d[maxAtoms];
-			for(int i=0;i<maxAtoms;i++) {
-				cod1[i] = ca1[mse1+i];
-				cod2[i] = ca2[mse2+i];
+		int gapMax = params.getMaxGapSize();
+		if (gapMax > 0) {
+			iterDepth = gapMax * 2 + 1;
+			traceScore = new double[traceMaxSize][iterDepth];
+		} else {
+			// a full matrix would be quadratic in the length
+			iterDepth = traceMaxSize;
+			traceScore = new double[traceMaxSize][];
+		}
+	}
+
+	/**
+	 * Trace all the seeds in the range [from, to) of the seed rectangle that
+	 * starts at (ise11, ise21). Seeds are numbered row by row, with width
+	 * seeds in each row. Only the admissible AFPs of the {@link AfpIndex} are
+	 * visited.
+	 *
+	 * @return false if the trace budget ran out
+	 */
+	private boolean traceSeeds(int iter, int ise11, int ise21, int width,
+			int from, int to) {
+
+		if (from >= to)
+			return true;
+
+		int winSize = params.getWinSize();
+		int nse1 = points1.length;
+		int nse2 = points2.length;
+
+		// only the admissible AFPs of each row of the range are seeds
+		for (int row = from / width; row <= (to - 1) / width; row++) {
+
+			int ise1 = ise11 + row;
+			int first = Math.max(from - row * width, 0);
+			int last = Math.min(to - row * width, width);
+
+			for (int k = afps.findInRow(ise1, ise21 + first); k < afps
+					.rowEnd(ise1); k++) {
+
+				int ise2 = afps.col(k);
+				if (ise2 >= ise21 + last)
+					break;
+				int seed = row * width + ise2 - ise21;
+
+				if (iter > 1 && ise1 == ise11 + 1 && ise2 == ise21 + 1)
+					continue;
+
+				// the seed workers do not know the best trace so far, the
+				// seeds are filtered when their traces are merged
+				if (iter == 0
+						&& traceLog == null
+						&& (ise1 > nse1 - winSize * (nBestTrace - 1) || ise2 > nse2
+								- winSize * (nBestTrace - 1)))
+					continue;
+
+				if (statistics != null)
+					statistics.seeds++;
+				if (traceLog != null)
+					traceLog.beginSeed(seed, ise1, ise2, nTraces);
+				boolean completed = traceSeed(iter, ise1, ise2,
+						afps.rowScore(k));
+				if (traceLog != null)
+					traceLog.endSeed(nTraces);
+
+				if (!completed) {
+					if (traceLog != null)
+						traceLog.stoppedAt = seed;
+					return false;
+				}
 			}
+		}
+		return true;
+	}
 
-			Matrix4d transform = SuperPositions.superpose(cod1, cod2);
+	/**
+	 * Extend the trace that starts with the AFP (ise1, ise2) as far as
+	 * possible, updating the best traces after every extension.
+	 *
+	 * @return false if the trace budget ran out
+	 */
+	private boolean traceSeed(int iter, int ise1, int ise2, double score0) {
 
-			double ang = RotationAxis.getAngle(transform);
+		int winSize = params.getWinSize();
+		int winSizeComb1 = (winSize - 1) * (winSize - 2) / 2;
+		boolean distAll = false;
 
-			return ang;
+		int winSizeComb2 = distAll ? winSize * winSize : winSize;
+		double rmsdThrJoin = params.getRmsdThrJoin();
+		double userRMSDMax = params.getMaxOptRMSD();
+		int nse1 = points1.length;
+		int nse2 = points2.length;
+		// largest gaps of the extensions along the rows and the columns
+		int rowGapMax = (iterDepth - 1) / 2;
+		int colGapMax = iterDepth / 2;
 
-		} catch (Exception e) {
-			e.printStackTrace();
-			return 0d;
+		double score = -1;
+		double score1 = -1;
+		double score2 = -1;
+
+		int mse1;
+		int mse2;
+		int jgap;
+		int jdir;
+		int jse1 = 0;
+		int jse2 = 0;
+		int kse1;
+		int kse2;
+
+		double traceTotalScore = 0;
+		double traceScoreMax = 0;
+
+		nTrace = 0;
+		trace1[nTrace] = ise1;
+		trace2[nTrace] = ise2;
+		traceIndex[nTrace] = 0;
+		traceIterLevel[nTrace] = 0;
+
+		nTrace++;
+		boolean isTraceUp = true;
+		int traceIndex_ = 0;
+
+		traceLoop: while (nTrace > 0) {
+
+			kse1 = trace1[nTrace - 1] + winSize;
+			kse2 = trace2[nTrace - 1] + winSize;
+
+			// System.out.println("isTraceUp " + isTraceUp + " " +
+			// nTrace + " " + kse1 + " " + kse2);
+
+			while (true) {
+				if (kse1 > nse1 - winSize - 1)
+					break;
+				if (kse2 > nse2 - winSize - 1)
+					break;
+				if (getAfpScore(kse1, kse2) >= 0.0)
+					break;
+				kse1++;
+				kse2++;
+			}
+
+			traceIndex_ = -1;
+
+			// no extension of the trace can change the best traces
+			if (pruning && isTraceUp && traceLog == null
+					&& !canImprove(iter, kse1, kse2)) {
+				if (statistics != null)
+					statistics.prunedTraces++;
+				// unwind the whole trace, as if no extension was found
+				nTrace = 0;
+				return true;
+			}
+
+			if (isTraceUp && kse1 <= nse1 - winSize - 1
+					&& kse2 <= nse2 - winSize - 1) {
+
+				int nBestExtTrace = nTrace;
+				double bestExtScore = 100.0;
+
+				// The candidate extensions of iteration it are (kse1,kse2)
+				// for it=0, (kse1+g,kse2) for it=2g-1 and (kse1,kse2+g) for
+				// it=2g. The admissible ones are merged from the row kse1 and
+				// the column kse2 of the AFP index, in the order of it.
+				int kRow = afps.findInRow(kse1, kse2);
+				int kRowEnd = afps.rowEnd(kse1);
+				int kCol = afps.findInCol(kse2, kse1 + 1);
+				int kColEnd = afps.colEnd(kse2);
+
+				// extension of the alignment path
+				// condition 4, 5
+				itLoop: while (true) {
+
+					int itRow = Integer.MAX_VALUE;
+					if (kRow < kRowEnd && afps.col(kRow) - kse2 <= rowGapMax)
+						itRow = 2 * (afps.col(kRow) - kse2);
+					int itCol = Integer.MAX_VALUE;
+					if (kCol < kColEnd && afps.row(kCol) - kse1 <= colGapMax)
+						itCol = 2 * (afps.row(kCol) - kse1) - 1;
+
+					int it;
+					if (itRow < itCol) {
+						it = itRow;
+						mse1 = kse1;
+						mse2 = afps.col(kRow);
+						kRow++;
+					} else if (itCol < Integer.MAX_VALUE) {
+						it = itCol;
+						mse1 = afps.row(kCol);
+						mse2 = kse2;
+						kCol++;
+					} else
+						break;
+
+					if (mse1 > nse1 - winSize - 1)
+						continue itLoop;
+					if (mse2 > nse2 - winSize - 1)
+						continue itLoop;
+
+					nTraces++;
+					if (statistics != null)
+						statistics.extensions++;
+					if (nTraces > maxTraces) {
+
+						return false;
+					}
+					if ((nTraces & DEADLINE_CHECK_MASK) == 0
+							&& budget.isExpired())
+						return false;
+
+					score = 0.0;
+
+					// if(!distAll) {
+					// System.out.println("getting score " + mse1 +
+					// " " + mse2 + " " + winSize + " " + jgap + " "
+					// + jdir + " " + it + " " + kse1 + " " + kse2);
+					score = getScoreFromDistanceMatrices(mse1, mse2, winSize);
+					// System.out.println("got score: " + score);
+					score1 = score / (nTrace * winSize);
+
+					// } else {
+					// // all dist
+					// for(int itrace=0; itrace<nTrace; itrace++) {
+					// for(int is1=0; is1<winSize; is1++)
+					// for(int is2=0; is2<winSize; is2++)
+					// score+=Math.abs(dist1[trace1[itrace]+is1][mse1+is2]-
+					// dist2[trace2[itrace]+is1][mse2+is2]);
+					// }
+					// score1=score/(nTrace*winSize*winSize);
+					// }
+
+					// System.out.println("up: " + nTrace + " " +
+					// score + " " + score0 + " " + score1 + " " +
+					// winSize + " " + traceIndex_ + " " + it +
+					// " ");
+					if (score1 > rmsdThrJoin || score1 > userRMSDMax) {
+						if (statistics != null)
+							statistics.rmsdRejections++;
+						continue itLoop;
+					}
+
+					double angle = getAngle(mse1, mse2, points1, points2,
+							winSize);
+					if (angle < MIN_ANGLE_RADIANS) {
+						if (statistics != null)
+							statistics.angleRejections++;
+						continue itLoop;
+					}
+
+					score2 = score1;
+
+					// this just got checked, no need to check
+					// again..
+					// if(score2>rmsdThrJoin)
+					// continue itLoop;
+
+					if (nTrace > nBestExtTrace
+							|| (nTrace == nBestExtTrace && score2 < bestExtScore)) {
+						// System.out.println("setting traceindex to "
+						// + it + " " + score2);
+						bestExtScore = score2;
+						nBestExtTrace = nTrace;
+						traceIndex_ = it;
+						setTraceScore(nTrace - 1, traceIndex_, score1);
+					}
+
+				}
+			}
+
+			if (traceIndex_ != -1) {
+				jgap = (traceIndex_ + 1) / 2;
+				jdir = (traceIndex_ + 1) % 2;
+				if (jdir == 0) {
+					jse1 = kse1 + jgap;
+					jse2 = kse2;
+				} else {
+					jse1 = kse1;
+					jse2 = kse2 + jgap;
+				}
+
+				if (iter == 0) {
+
+					score1 = (traceScore[nTrace - 1][traceIndex_]
+							* winSizeComb2 * nTrace + getAfpScore(jse1, jse2)
+							* winSizeComb1)
+							/ (winSizeComb2 * nTrace + winSizeComb1);
+
+					score2 = getScore2(jse1, jse2, traceScore, traceIndex_,
+							traceIndex, winSizeComb1, winSizeComb2, score0,
+							score1);
+
+					if (score2 > rmsdThrJoin || score2 > userRMSDMax) {
+						if (statistics != null)
+							statistics.rmsdRejections++;
+						traceIndex_ = -1;
+					} else {
+						traceScore[nTrace - 1][traceIndex_] = score2;
+
+						traceTotalScore = score2;
+					}
+
+				} else {
+					if (traceScoreMax > rmsdThrJoin
+							&& nBestTrace >= nBestTrace0)
+						traceIndex_ = -1;
+					traceTotalScore = traceScoreMax;
+				}
+			}
+
+			// System.out.println("middle: " + nTrace + " " + score
+			// + " " + score0 + " " + score1 + "  " + score2 + " " +
+			// traceIndex_);
+
+			if (traceIndex_ == -1) {
+				// System.out.println("continue traceLoop " +
+				// nTrace);
+				// if(iterLevel==1) break;
+				nTrace--;
+				isTraceUp = false;
+				continue traceLoop;
+			} else {
+				traceIterLevel[nTrace - 1]++;
+				trace1[nTrace] = jse1;
+				trace2[nTrace] = jse2;
+				traceIndex[nTrace] = traceIndex_;
+				traceIterLevel[nTrace] = 0;
+				nTrace++;
+				isTraceUp = true;
+
+				if (statistics != null)
+					statistics.traces++;
+				if (traceLog != null)
+					traceLog.addExtension(jse1, jse2, traceTotalScore, nTraces);
+				else
+					updateBestTraces(iter, traceTotalScore);
+			}
 		}
+		return true;
+	}
+
+	/**
+	 * Checks if the extensions of the current trace can still change the best
+	 * trace (or the list of best traces in iteration 0). The next AFP of the
+	 * trace starts at kse1 and kse2 or later, and the AFPs of a trace do not
+	 * overlap, which bounds the length the trace can reach. The trace scores
+	 * are never negative, so a trace of the same length as the best one can
+	 * only replace it if the best score is positive.
+	 *
+	 * @return false if the trace can be abandoned without changing the result
+	 */
+	private boolean canImprove(int iter, int kse1, int kse2) {
+
+		int winSize = params.getWinSize();
+		int last1 = points1.length - winSize - 1;
+		int last2 = points2.length - winSize - 1;
+		int maxLength = nTrace;
+		if (kse1 <= last1 && kse2 <= last2)
+			maxLength += Math.min((last1 - kse1) / winSize,
+					(last2 - kse2) / winSize) + 1;
+
+		if (maxLength > nBestTrace
+				|| (maxLength == nBestTrace && bestTraceScore > 0))
+			return true;
+		if (iter != 0)
+			return false;
+
+		// the list of best traces replaces its shortest trace
+		if (nBestTraces < BEST_TRACES_MAX)
+			return true;
+		int n = bestTracesN[newBestTrace];
+		return maxLength > n
+				|| (maxLength == n && bestTracesScores[newBestTrace] > 0);
+	}
+
+	/**
+	 * Store the score of the extension it at the given depth of the trace,
+	 * growing the row of scores if needed.
+	 */
+	private void setTraceScore(int depth, int it, double score) {
+		double[] row = traceScore[depth];
+		if (row == null || it >= row.length) {
+			int length = row == null ? MIN_TRACE_SCORE_ROW : 2 * row.length;
+			length = Math.min(Math.max(length, it + 1), iterDepth);
+			if (row == null)
+				row = new double[length];
+			else
+				row = Arrays.copyOf(row, length);
+			traceScore[depth] = row;
+		}
+		row[it] = score;
+	}
+
+	/**
+	 * Update the best trace and the list of best traces with the current
+	 * trace, which has just been extended.
+	 */
+	private void updateBestTraces(int iter, double traceTotalScore) {
+
+		if (nTrace > nBestTrace
+				|| (nTrace == nBestTrace && bestTraceScore > traceTotalScore)) {
+
+			for (int itrace = 0; itrace < nTrace; itrace++) {
+				bestTrace1[itrace] = trace1[itrace];
+				bestTrace2[itrace] = trace2[itrace];
+			}
+			bestTraceScore = traceTotalScore;
+			nBestTrace = nTrace;
+		}
+
+		if (iter == 0) {
+			// System.out.println("doing iter0 " +
+			// newBestTrace + " " + traceTotalScore + " " +
+			// bestTracesMax);
+			newBestTrace = doIter0(newBestTrace, traceTotalScore,
+					BEST_TRACES_MAX);
+		}
+	}
+
+	/**
+	 * Trace the seeds of the first iteration in parallel. The seeds are split
+	 * in consecutive blocks, traced by independent workers, and the
+	 * extensions found by the workers are merged in the order of the seeds, so
+	 * that the best traces are the same as with {@link #traceSeeds}.
+	 *
+	 * @return false if the trace budget ran out
+	 */
+	private boolean traceSeedsParallel(final int ise11, final int ise21,
+			final int width, int nSeeds) {
+
+		int nBlocks = Math.min(nSeeds, seedPool.getParallelism()
+				* BLOCKS_PER_THREAD);
+		if (nBlocks < 2)
+			return traceSeeds(0, ise11, ise21, width, 0, nSeeds);
+
+		final int[] blockStart = new int[nBlocks + 1];
+		for (int b = 0; b <= nBlocks; b++)
+			blockStart[b] = (int) ((long) nSeeds * b / nBlocks);
+
+		List<Callable<CESymmCalculator>> tasks = new ArrayList<Callable<CESymmCalculator>>(
+				nBlocks);
+		for (int b = 0; b < nBlocks; b++) {
+			final int from = blockStart[b];
+			final int to = blockStart[b + 1];
+			tasks.add(new Callable<CESymmCalculator>() {
+				@Override
+				public CESymmCalculator call() {
+					CESymmCalculator worker = newSeedWorker();
+					worker.traceSeeds(0, ise11, ise21, width, from, to);
+					return worker;
+				}
+			});
+		}
+
+		try {
+			List<Future<CESymmCalculator>> workers = seedPool.invokeAll(tasks);
+			for (int b = 0; b < nBlocks; b++) {
+				CESymmCalculator worker = workers.get(b).get();
+				angleMismatches += worker.angleMismatches;
+				if (statistics != null)
+					statistics.add(worker.statistics);
+
+				int resume = mergeTraceLog(worker.traceLog, ise11, ise21,
+						width);
+				if (resume == -2)
+					return false;
+				if (resume >= 0) {
+					if (budget.isExpired())
+						return false;
+					// the worker reached the limit of traces on its own, but
+					// this trace might not: continue serially from that seed
+					if (!traceSeeds(0, ise11, ise21, width, resume,
+							blockStart[b + 1]))
+						return false;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(
+					"Interrupted while tracing the seeds", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Error tracing the seeds",
+					e.getCause());
+		}
+		return true;
+	}
+
+	/**
+	 * Creates a calculator that traces seeds of this trace into its own
+	 * {@link TraceLog}. It shares the similarity and distance matrices, which
+	 * are only read during the trace, and the thread-safe angle cache.
+	 */
+	private CESymmCalculator newSeedWorker() {
+		CESymmCalculator worker = new CESymmCalculator(params);
+		worker.angleMethod = angleMethod;
+		worker.mat = mat;
+		worker.setDist1(super.getDist1());
+		worker.setDist2(super.getDist2());
+		worker.flatDist1 = flatDist1;
+		worker.flatDist2 = flatDist2;
+		worker.wrap2 = wrap2;
+		worker.period = period;
+		worker.packedMat = packedMat;
+		worker.packedDist1 = packedDist1;
+		worker.packedDist2 = packedDist2;
+		worker.points1 = points1;
+		worker.points2 = points2;
+		worker.frames1 = frames1;
+		worker.frames2 = frames2;
+		worker.afps = afps;
+		worker.angleCache = angleCache;
+		worker.budget = budget;
+		if (statistics != null)
+			worker.statistics = new TraceStatistics();
+		worker.maxTraces = maxTraces;
+		worker.initTraceBuffers(trace1.length);
+		worker.traceWeights = traceWeights;
+		worker.traceLog = new TraceLog();
+		return worker;
+	}
+
+	/**
+	 * Replays the extensions of a seed worker on this calculator, skipping the
+	 * seeds that the serial trace would have skipped.
+	 *
+	 * @return -1 if all the seeds were merged, -2 if the limit of traces was
+	 *         reached, or the seed where the worker stopped
+	 */
+	private int mergeTraceLog(TraceLog log, int ise11, int ise21, int width) {
+
+		int winSize = params.getWinSize();
+		int nse1 = points1.length;
+		int nse2 = points2.length;
+
+		int ext = 0;
+		for (int s = 0; s < log.nSeeds; s++) {
+
+			int seed = log.seeds[s];
+			int nExt = log.seedExtensions[s];
+			if (seed == log.stoppedAt)
+				return seed;
+
+			int ise1 = ise11 + seed / width;
+			int ise2 = ise21 + seed % width;
+			if (ise1 > nse1 - winSize * (nBestTrace - 1)
+					|| ise2 > nse2 - winSize * (nBestTrace - 1)) {
+				ext += nExt;
+				continue;
+			}
+
+			trace1[0] = ise1;
+			trace2[0] = ise2;
+			for (int e = 0; e < nExt; e++, ext++) {
+				if ((long) nTraces + log.extTraces[ext] > maxTraces) {
+					nTraces = maxTraces + 1;
+					return -2;
+				}
+				trace1[e + 1] = log.ext1[ext];
+				trace2[e + 1] = log.ext2[ext];
+				nTrace = e + 2;
+				updateBestTraces(0, log.extScores[ext]);
+			}
+
+			if ((long) nTraces + log.seedTraces[s] > maxTraces) {
+				nTraces = maxTraces + 1;
+				return -2;
+			}
+			nTraces += log.seedTraces[s];
+		}
+		return -1;
+	}
+
+	/**
+	 * Extensions found by a seed worker, in the order they were found. Each
+	 * extension stores the new AFP, the score of the trace and the number of
+	 * traces tried since the start of the seed.
+	 */
+	private static class TraceLog {
+
+		int nSeeds = 0;
+		int[] seeds = new int[16];
+		int[] seedExtensions = new int[16];
+		int[] seedTraces = new int[16];
+
+		int nExt = 0;
+		int[] ext1 = new int[64];
+		int[] ext2 = new int[64];
+		double[] extScores = new double[64];
+		int[] extTraces = new int[64];
+
+		/** Seed where the limit of traces was reached, or -1 */
+		int stoppedAt = -1;
+
+		private int firstTrace;
+
+		void beginSeed(int seed, int ise1, int ise2, int nTraces) {
+			if (nSeeds == seeds.length) {
+				seeds = Arrays.copyOf(seeds, 2 * nSeeds);
+				seedExtensions = Arrays.copyOf(seedExtensions, 2 * nSeeds);
+				seedTraces = Arrays.copyOf(seedTraces, 2 * nSeeds);
+			}
+			seeds[nSeeds] = seed;
+			seedExtensions[nSeeds] = 0;
+			firstTrace = nTraces;
+		}
+
+		void addExtension(int jse1, int jse2, double score, int nTraces) {
+			if (nExt == ext1.length) {
+				ext1 = Arrays.copyOf(ext1, 2 * nExt);
+				ext2 = Arrays.copyOf(ext2, 2 * nExt);
+				extScores = Arrays.copyOf(extScores, 2 * nExt);
+				extTraces = Arrays.copyOf(extTraces, 2 * nExt);
+			}
+			ext1[nExt] = jse1;
+			ext2[nExt] = jse2;
+			extScores[nExt] = score;
+			extTraces[nExt] = nTraces - firstTrace;
+			nExt++;
+			seedExtensions[nSeeds]++;
+		}
+
+		void endSeed(int nTraces) {
+			seedTraces[nSeeds] = nTraces - firstTrace;
+			// seeds that did not try any extension do not change the trace
+			if (seedTraces[nSeeds] > 0)
+				nSeeds++;
+		}
+	}
+
+	/**
+	 * Weights of the trace extension of CE, as in
+	 * CECalculator.extractFragments (both branches of distAll use the same
+	 * weights). They are kept as long, because they are quadratic in the
+	 * length of the trace.
+	 */
+	private static long[] initTraceWeights(int traceMaxSize, int winSize) {
+		long winSizeComb1 = (winSize - 1) * (winSize - 2) / 2;
+		long[] weights = new long[traceMaxSize];
+		for (int i = 0; i < traceMaxSize; i++)
+			weights[i] = (i + 1L) * i * winSize * winSize / 2 + (i + 1)
+					* winSizeComb1;
+		return weights;
+	}
+
+	/**
+	 * Score of the trace extended by the AFP (jse1, jse2), as in
+	 * CECalculator. It is overridden because the weights of CECalculator are
+	 * not set with the {@link #setFlatStorage(boolean) flat} or the
+	 * {@link #setPackedStorage(boolean) packed} storage, nor in the seed
+	 * workers.
+	 */
+	@Override
+	protected double getScore2(int jse1, int jse2, double[][] traceScore,
+			int traceIndex_, int[] traceIndex, int winSizeComb1,
+			int winSizeComb2, double score0, double score1) {
+
+		double val = nTrace > 1 ? traceScore[nTrace - 2][traceIndex[nTrace - 1]]
+				: score0;
+		return (val * traceWeights[nTrace - 1] + score1
+				* (traceWeights[nTrace] - traceWeights[nTrace - 1]))
+				/ traceWeights[nTrace];
+	}
+
+	/**
+	 * Value of the similarity matrix for the AFP at positions i, j, read from
+	 * the packed storage if it is in use.
+	 */
+	private double getAfpScore(int i, int j) {
+		if (packedMat != null)
+			return packedMat.get(i, j);
+		return mat[i][j];
+	}
+
+	@Override
+	protected double getScoreFromDistanceMatrices(int mse1, int mse2,
+			int winSize) {
+
+		if (flatDist1 != null)
+			return getScoreFromFlatDistances(mse1, mse2, winSize);
+		if (packedDist1 == null)
+			return super.getScoreFromDistanceMatrices(mse1, mse2, winSize);
+
+		double score = 0;
+		for (int itrace = 0; itrace < nTrace; itrace++) {
+			int t1 = trace1[itrace];
+			int t2 = trace2[itrace];
+			score += Math.abs(packedDist1.get(t1, mse1)
+					- getPackedDistance2(t2, mse2));
+			score += Math.abs(packedDist1.get(t1 + winSize - 1, mse1
+					+ winSize - 1)
+					- getPackedDistance2(t2 + winSize - 1, mse2 + winSize - 1));
+			for (int id = 1; id < winSize - 1; id++)
+				score += Math.abs(packedDist1.get(t1 + id, mse1 + winSize - 1
+						- id)
+						- getPackedDistance2(t2 + id, mse2 + winSize - 1 - id));
+		}
+		return score;
+	}
+
+	/**
+	 * Distance between the atoms i and j of ca2 in the packed matrix, with
+	 * the positions taken modulo the period of ca2.
+	 */
+	private double getPackedDistance2(int i, int j) {
+		if (wrap2 != null)
+			return packedDist2.get(wrap2[i], wrap2[j]);
+		return packedDist2.get(i, j);
+	}
+
+	/**
+	 * Version of {@link #getScoreFromDistanceMatrices(int, int, int)} for the
+	 * flat distance matrices. The elements of the anti-diagonal of a window
+	 * are at a constant stride of size-1 in the flat arrays, except for the
+	 * windows of a periodic ca2 that cross the end of its period.
+	 */
+	private double getScoreFromFlatDistances(int mse1, int mse2, int winSize) {
+
+		double[] d1 = flatDist1.getDistances();
+		double[] d2 = flatDist2.getDistances();
+		int n1 = flatDist1.size();
+		int n2 = flatDist2.size();
+		int last = winSize - 1;
+
+		boolean wrapMse2 = false;
+		if (wrap2 != null) {
+			mse2 = wrap2[mse2];
+			wrapMse2 = mse2 + last >= n2;
+		}
+
+		double score = 0;
+		for (int itrace = 0; itrace < nTrace; itrace++) {
+			int t1 = trace1[itrace];
+			int t2 = trace2[itrace];
+			if (wrap2 != null) {
+				t2 = wrap2[t2];
+				if (wrapMse2 || t2 + last >= n2) {
+					score = addWrappedWindowScore(score, d1, d2, n1, n2, t1,
+							t2, mse1, mse2, last);
+					continue;
+				}
+			}
+			score += Math.abs(d1[t1 * n1 + mse1] - d2[t2 * n2 + mse2]);
+			score += Math.abs(d1[(t1 + last) * n1 + mse1 + last]
+					- d2[(t2 + last) * n2 + mse2 + last]);
+			int k1 = (t1 + 1) * n1 + mse1 + last - 1;
+			int k2 = (t2 + 1) * n2 + mse2 + last - 1;
+			for (int id = 1; id < last; id++) {
+				score += Math.abs(d1[k1] - d2[k2]);
+				k1 += n1 - 1;
+				k2 += n2 - 1;
+			}
+		}
+		return score;
+	}
+
+	/**
+	 * Adds the score of a window of the trace to score, with the positions of
+	 * the second structure taken modulo the period n2. The terms are added in
+	 * the same order as in {@link #getScoreFromFlatDistances(int, int, int)}.
+	 */
+	private static double addWrappedWindowScore(double score, double[] d1,
+			double[] d2, int n1, int n2, int t1, int t2, int mse1, int mse2,
+			int last) {
+		score += Math.abs(d1[t1 * n1 + mse1] - d2[t2 * n2 + mse2]);
+		score += Math.abs(d1[(t1 + last) * n1 + mse1 + last]
+				- d2[((t2 + last) % n2) * n2 + (mse2 + last) % n2]);
+		for (int id = 1; id < last; id++)
+			score += Math.abs(d1[(t1 + id) * n1 + mse1 + last - id]
+					- d2[((t2 + id) % n2) * n2 + (mse2 + last - id) % n2]);
+		return score;
+	}
+
+	/**
+	 * Flat version of {@link CECalculator#initSumOfDistances}, the rows of the
+	 * fragments are read at a constant offset.
+	 * <p>
+	 * If wrap2 is not null, the second structure is a periodic copy of the
+	 * atoms of dist2 and has wrap2.length atoms. The fragments that are
+	 * repeated in a later period are not calculated again. If bandStart is
+	 * not null, only the AFPs inside the band are calculated, repeated with
+	 * the given period of the second structure (0 if it is not periodic).
+	 */
+	private static double[][] initSumOfDistances(FlatDistanceMatrix dist1,
+			FlatDistanceMatrix dist2, int[] wrap2, int[] bandStart,
+			int[] bandEnd, int period, int winSize, int winSizeComb1) {
+
+		int nse1 = dist1.size();
+		int n2 = dist2.size();
+		int nse2 = wrap2 != null ? wrap2.length : n2;
+		double[] d1 = dist1.getDistances();
+		double[] d2 = dist2.getDistances();
+		double[][] sum = new double[nse1][nse2];
+
+		for (int ise1 = 0; ise1 < nse1; ise1++) {
+			double[] row = sum[ise1];
+			for (int ise2 = 0; ise2 < nse2; ise2++) {
+				if (ise1 > nse1 - winSize || ise2 > nse2 - winSize
+						|| (bandStart != null && !isInBand(bandStart, bandEnd,
+								period, ise1, ise2))) {
+					row[ise2] = -1.0;
+					continue;
+				}
+				// calculated AFPs are never negative
+				if (ise2 >= n2 && row[ise2 - n2] >= 0.0) {
+					row[ise2] = row[ise2 - n2];
+					continue;
+				}
+				double d = 0.0;
+				if (ise2 + winSize <= n2) {
+					for (int is1 = 0; is1 < winSize - 2; is1++) {
+						int k1 = (ise1 + is1) * nse1 + ise1;
+						int k2 = (ise2 + is1) * n2 + ise2;
+						for (int is2 = is1 + 2; is2 < winSize; is2++)
+							d += Math.abs(d1[k1 + is2] - d2[k2 + is2]);
+					}
+				} else {
+					// the fragment crosses the end of the period
+					for (int is1 = 0; is1 < winSize - 2; is1++) {
+						int k1 = (ise1 + is1) * nse1 + ise1;
+						int k2 = wrap2[ise2 + is1] * n2;
+						for (int is2 = is1 + 2; is2 < winSize; is2++)
+							d += Math.abs(d1[k1 + is2]
+									- d2[k2 + wrap2[ise2 + is2]]);
+					}
+				}
+				row[ise2] = d / winSizeComb1;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Packed version of the CA intra-distance matrix of CECalculator.
+	 */
+	private static PackedSymmetricMatrix initIntraDistances(Atom[] ca) {
+		PackedSymmetricMatrix dist = new PackedSymmetricMatrix(ca.length);
+		for (int i = 0; i < ca.length; i++) {
+			for (int j = i; j < ca.length; j++)
+				dist.set(i, j, Calc.getDistance(ca[i], ca[j]));
+		}
+		return dist;
+	}
+
+	/**
+	 * Packed version of {@link CECalculator#initSumOfDistances}, for a
+	 * structure against itself repeated up to length2 atoms. Only the upper
+	 * triangle of the first period and the fragments that cross the end of
+	 * the period are calculated.
+	 */
+	private static PeriodicSymmetricMatrix initSumOfDistances(
+			PackedSymmetricMatrix dist, int length2, int winSize,
+			int winSizeComb1) {
+
+		int nse = dist.size();
+		PeriodicSymmetricMatrix sum = new PeriodicSymmetricMatrix(nse,
+				length2, winSize);
+		int last2 = Math.min(nse - 1, length2 - winSize);
+
+		for (int ise1 = 0; ise1 <= nse - winSize; ise1++) {
+			for (int ise2 = ise1; ise2 <= last2; ise2++) {
+				double d = 0.0;
+				for (int is1 = 0; is1 < winSize - 2; is1++) {
+					int k1 = (ise2 + is1) % nse;
+					for (int is2 = is1 + 2; is2 < winSize; is2++) {
+						d += Math.abs(dist.get(ise1 + is1, ise1 + is2)
+								- dist.get(k1, (ise2 + is2) % nse));
+					}
+				}
+				sum.set(ise1, ise2, d / winSizeComb1);
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns the period of ca2 as a repetition of the coordinates of ca1:
+	 * the length of ca1 if ca2 has the same coordinates as ca1, or as ca1
+	 * repeated several times (like the duplicated atoms of CE-Symm), 0
+	 * otherwise.
+	 */
+	private static int getPeriod(Atom[] ca1, Atom[] ca2) {
+		int n = ca1.length;
+		if (n == 0 || ca2.length < n || ca2.length % n != 0)
+			return 0;
+		for (int i = 0; i < ca2.length; i++) {
+			Atom a1 = ca1[i % n];
+			if (a1 != ca2[i]
+					&& (a1.getX() != ca2[i].getX()
+							|| a1.getY() != ca2[i].getY()
+							|| a1.getZ() != ca2[i].getZ()))
+				return 0;
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the rotation angle between the AFPs at positions mse1, mse2,
+	 * calculated with the current {@link AngleMethod}.
+	 *
+	 * @param mse1
+	 * @param mse2
+	 * @param ca1
+	 * @param ca2
+	 * @param winSize
+	 * @return the rotation angle, in radians
+	 */
+	private double getAngle(int mse1, int mse2, Point3d[] ca1, Point3d[] ca2,
+			int winSize) {
+
+		if (angleMethod == AngleMethod.SUPERPOSITION
+				|| !frames1.isDefined(mse1) || !frames2.isDefined(mse2))
+			return superpositionAngle(mse1, mse2, ca1, ca2, winSize);
+
+		double angle = frames1.getAngle(mse1, frames2, mse2);
+
+		if (angleMethod == AngleMethod.VALIDATE) {
+			double exact = superpositionAngle(mse1, mse2, ca1, ca2, winSize);
+			if ((angle < MIN_ANGLE_RADIANS) != (exact < MIN_ANGLE_RADIANS)) {
+				angleMismatches++;
+				logger.debug("Angle check mismatch at ({},{}): frames {}, "
+						+ "superposition {}", mse1, mse2, angle, exact);
+			}
+			return exact;
+		}
+		return angle;
+	}
+
+	/**
+	 * Angle of the AFP at positions mse1, mse2 by superposition, looked up in
+	 * the {@link AngleCache} first if it is enabled.
+	 */
+	private double superpositionAngle(int mse1, int mse2, Point3d[] ca1,
+			Point3d[] ca2, int winSize) {
+		if (angleCache == null)
+			return checkAngle(mse1, mse2, ca1, ca2, winSize);
+
+		double angle = angleCache.get(mse1, mse2);
+		if (Double.isNaN(angle)) {
+			angle = checkAngle(mse1, mse2, ca1, ca2, winSize);
+			angleCache.put(mse1, mse2, angle);
+		}
+		return angle;
+	}
+
+	/**
+	 * do a SVN of the AFPs at positions mse1, mse2. Returns the rotation angle
+	 * between the AFPs
+	 * 
+	 * @param mse1
+	 * @param mse2
+	 * @param ca1
+	 * @param ca2
+	 * @param winSize
+	 * @return
+	 */
+	private double checkAngle(int mse1, int mse2, Point3d[] ca1, Point3d[] ca2,
+			int winSize) {
+		if (statistics != null)
+			statistics.angleCalculations++;
+		try {
+			// length of next window
+			// TODO Doesn't the -1 skip the last residue? -Spencer 2018-12-27
+			int max1 = Math.min(ca1.length - mse1 - 1, winSize);
+			int max2 = Math.min(ca2.length - mse2 - 1, winSize);
+			int maxAtoms = Math.min(max1, max2);
+
+			// Extract fragments
+ 			Point3d[] cod1 = new Point3d[maxAtoms];
+			Point3d[] cod2 = new Point3d[maxAtoms];
+			for(int i=0;i<maxAtoms;i++) {
+				cod1[i] = ca1[mse1+i];
+				cod2[i] = ca2[mse2+i];
+			}
+
+			Matrix4d transform = SuperPositions.superpose(cod1, cod2);
+
+			double ang = RotationAxis.getAngle(transform);
+
+			return ang;
+
+		} catch (Exception e) {
+			e.printStackTrace();
+			return 0d;
+		}
+	}
+
+	@Override
+	public double[][] getMatMatrix() {
+		if (packedMat != null)
+			return packedMat.toArray();
+		return super.getMatMatrix();
+	}
+
+	/**
+	 * Returns the distance matrix of the first structure. If the distances
+	 * are stored as {@link FlatDistanceMatrix} or {@link PackedSymmetricMatrix}
+	 * objects, this is a new full copy at every call. Use
+	 * {@link #getDistance1(int, int)} to read the distances without copying.
+	 */
+	@Override
+	public double[][] getDist1() {
+		if (flatDist1 != null)
+			return flatDist1.toArray();
+		if (packedDist1 != null)
+			return packedDist1.toArray();
+		return super.getDist1();
+	}
+
+	/**
+	 * Returns the distance matrix of the second structure. If the distances
+	 * are stored as {@link FlatDistanceMatrix} or {@link PackedSymmetricMatrix}
+	 * objects, this is a new full copy at every call, and for the duplicated
+	 * atoms of CE-Symm it has four times the size of the shared matrix. Use
+	 * {@link #getDistance2(int, int)} to read the distances without copying.
+	 */
+	@Override
+	public double[][] getDist2() {
+		if (flatDist2 != null && wrap2 != null)
+			return flatDist2.toPeriodicArray(wrap2.length);
+		if (flatDist2 != null)
+			return flatDist2.toArray();
+		if (packedDist2 != null && wrap2 != null) {
+			double[][] dist = new double[wrap2.length][wrap2.length];
+			for (int i = 0; i < wrap2.length; i++) {
+				for (int j = 0; j < wrap2.length; j++)
+					dist[i][j] = packedDist2.get(wrap2[i], wrap2[j]);
+			}
+			return dist;
+		}
+		if (packedDist2 != null)
+			return packedDist2.toArray();
+		return super.getDist2();
+	}
+
+	/**
+	 * @return the distance between the atoms i and j of the first structure,
+	 *         read from the matrix in use
+	 */
+	public double getDistance1(int i, int j) {
+		if (flatDist1 != null)
+			return flatDist1.get(i, j);
+		if (packedDist1 != null)
+			return packedDist1.get(i, j);
+		return super.getDist1()[i][j];
+	}
+
+	/**
+	 * @return the distance between the atoms i and j of the second structure,
+	 *         read from the matrix in use
+	 */
+	public double getDistance2(int i, int j) {
+		if (wrap2 != null) {
+			i = wrap2[i];
+			j = wrap2[j];
+		}
+		if (flatDist2 != null)
+			return flatDist2.get(i, j);
+		if (packedDist2 != null)
+			return packedDist2.get(i, j);
+		return super.getDist2()[i][j];
+	}
+
+	/**
+	 * Replace the similarity matrix. This discards the packed matrix, use
+	 * {@link #maskAfp(int, int)} to remove AFPs without unpacking it.
+	 */
+	@Override
+	public void setMatMatrix(double[][] matrix) {
+		packedMat = null;
+		super.setMatMatrix(matrix);
+	}
+
+	/**
+	 * Remove an AFP from the trace, by setting it to -1 in the similarity
+	 * matrix, in place also in the packed storage. Must be called after
+	 * {@link #extractFragments(AFPChain, Atom[], Atom[])}.
+	 * <p>
+	 * If the second structure repeats the coordinates of the first one, the
+	 * AFPs of the same fragments are removed too: the AFP (i,j) in every
+	 * period of the second structure and, if the fragment j is inside the
+	 * period, the symmetric AFP (j mod period, i). This is the same with and
+	 * without packed storage.
+	 *
+	 * @param i
+	 *            start of the fragment of the first structure
+	 * @param j
+	 *            start of the fragment of the second structure
+	 */
+	public void maskAfp(int i, int j) {
+		if (packedMat != null) {
+			if (packedMat.isDefined(i, j))
+				packedMat.set(i, j, -1.0);
+			return;
+		}
+		if (mat == null)
+			throw new IllegalStateException(
+					"The similarity matrix is not calculated");
+		if (period == 0) {
+			mat[i][j] = -1.0;
+			return;
+		}
+		int c = j % period;
+		for (int k = c; k < mat[i].length; k += period)
+			mat[i][k] = -1.0;
+		if (c + params.getWinSize() <= period) {
+			for (int k = i; k < mat[c].length; k += period)
+				mat[c][k] = -1.0;
+		}
+	}
+
+	/**
+	 * @return true if self-alignments use packed matrices
+	 */
+	public boolean isPackedStorage() {
+		return packedStorage;
+	}
+
+	/**
+	 * @return true if the similarity matrix of the last call to
+	 *         {@link #extractFragments(AFPChain, Atom[], Atom[])} was stored
+	 *         packed, see {@link #setPackedStorage(boolean)}
+	 */
+	public boolean isPackedMatrix() {
+		return packedMatrix;
+	}
+
+	/**
+	 * Store the similarity matrix of self-alignments as a
+	 * {@link PeriodicSymmetricMatrix} and the distances as a single
+	 * {@link PackedSymmetricMatrix}. The second structure must have the same
+	 * coordinates as the first one, or the same coordinates repeated, like
+	 * the duplicated atoms of CE-Symm. For CE-Symm the similarity matrix needs
+	 * about a quarter of the memory of the full one, and the distances half of
+	 * the memory of a single full distance matrix. Only supported for
+	 * {@link ScoringStrategy#CA_SCORING} and without the
+	 * {@link #setCoarseStep(int) coarse-to-fine mode}; other cases use the
+	 * full matrices, see {@link #isPackedMatrix()}.
+	 *
+	 * @param packedStorage
+	 */
+	public void setPackedStorage(boolean packedStorage) {
+		this.packedStorage = packedStorage;
+	}
+
+	/**
+	 * @return true if the distance matrices are stored as
+	 *         {@link FlatDistanceMatrix} objects
+	 */
+	public boolean isFlatStorage() {
+		return flatStorage;
+	}
+
+	/**
+	 * Store the distance matrices as {@link FlatDistanceMatrix} objects and
+	 * use the flat loops to calculate the AFP scores (the default). Disable it
+	 * to use the double[][] matrices of CECalculator. Only supported for
+	 * {@link ScoringStrategy#CA_SCORING}, and {@link #setPackedStorage(boolean)
+	 * packed storage} takes precedence for self-alignments.
+	 *
+	 * @param flatStorage
+	 */
+	public void setFlatStorage(boolean flatStorage) {
+		this.flatStorage = flatStorage;
+	}
+
+	/**
+	 * @return true if self-alignments use a single distance matrix for both
+	 *         structures
+	 */
+	public boolean isSharedDistances() {
+		return sharedDistances;
+	}
+
+	/**
+	 * Calculate a single distance matrix for self-alignments (the default),
+	 * instead of one for each structure. It is used for both structures when
+	 * they have the same coordinates, and also when the second structure is
+	 * the first one duplicated, as in CE-Symm, by taking its positions modulo
+	 * the length of the first. This halves the setup time and the memory of
+	 * the distance matrices. The {@link #setPackedStorage(boolean) packed
+	 * storage} always uses a single distance matrix.
+	 *
+	 * @param sharedDistances
+	 */
+	public void setSharedDistances(boolean sharedDistances) {
+		this.sharedDistances = sharedDistances;
+	}
+
+	/**
+	 * @return true if the traces that cannot change the best traces are
+	 *         abandoned
+	 */
+	public boolean isPruning() {
+		return pruning;
+	}
+
+	/**
+	 * Abandon the traces whose extensions cannot change the best traces (the
+	 * default), because they cannot become longer than the best trace given
+	 * the residues left in both structures. The best traces are the same with
+	 * and without pruning, but fewer extensions are scored, so a
+	 * {@link TraceBudget} with a limit on the number of traces can stop at a
+	 * different point. The pruned traces are counted in the
+	 * {@link TraceStatistics}.
+	 *
+	 * @param pruning
+	 */
+	public void setPruning(boolean pruning) {
+		this.pruning = pruning;
+	}
+
+	/**
+	 * @return the distance between the atoms of the coarse trace, 1 if the
+	 *         coarse-to-fine mode is disabled
+	 */
+	public int getCoarseStep() {
+		return coarseStep;
+	}
+
+	/**
+	 * Enable the coarse-to-fine mode, to speed up large structures. The AFPs
+	 * are first traced in the structures downsampled to one atom every
+	 * coarseStep atoms, with fragments coarseStep times shorter. Then only the
+	 * AFPs in a {@link #setCoarseBand(int) band} around the best coarse trace
+	 * are calculated and traced at full resolution. Structures that are too
+	 * short or without a coarse trace are traced at full resolution.
+	 * <p>
+	 * The result can differ from the full-resolution trace, use
+	 * {@link #setCoarseValidation(boolean)} to compare them. The packed
+	 * storage is not used in this mode.
+	 *
+	 * @param coarseStep
+	 *            distance between the atoms of the coarse trace, 1 to disable
+	 *            the coarse-to-fine mode (the default)
+	 */
+	public void setCoarseStep(int coarseStep) {
+		if (coarseStep < 1)
+			throw new IllegalArgumentException("Invalid coarse step: "
+					+ coarseStep);
+		this.coarseStep = coarseStep;
+	}
+
+	/**
+	 * @return the half-width of the band around the coarse trace, in residues
+	 */
+	public int getCoarseBand() {
+		return coarseBand;
+	}
+
+	/**
+	 * Set the half-width of the band around the coarse trace where the AFPs
+	 * are traced at full resolution, in residues. The default is
+	 * {@link #DEFAULT_COARSE_BAND}.
+	 *
+	 * @param coarseBand
+	 */
+	public void setCoarseBand(int coarseBand) {
+		if (coarseBand < 0)
+			throw new IllegalArgumentException("Invalid coarse band: "
+					+ coarseBand);
+		this.coarseBand = coarseBand;
+	}
+
+	/**
+	 * @return true if the coarse-to-fine trace is compared with the
+	 *         full-resolution trace
+	 */
+	public boolean isCoarseValidation() {
+		return coarseValidation;
+	}
+
+	/**
+	 * Also run the full-resolution trace in the coarse-to-fine mode and
+	 * compare the best traces, see {@link #isCoarseMismatch()}. The result of
+	 * the coarse-to-fine trace is kept. This is only useful to evaluate the
+	 * coarse-to-fine mode, since it is slower than the full-resolution trace
+	 * alone.
+	 *
+	 * @param coarseValidation
+	 */
+	public void setCoarseValidation(boolean coarseValidation) {
+		this.coarseValidation = coarseValidation;
+	}
+
+	/**
+	 * @return true if the last coarse-to-fine trace found a different best
+	 *         trace than the full-resolution trace. Only set with
+	 *         {@link #setCoarseValidation(boolean) validation} enabled.
+	 */
+	public boolean isCoarseMismatch() {
+		return coarseMismatch;
+	}
+
+	/**
+	 * @return the method used to calculate the angle between AFP fragments
+	 */
+	public AngleMethod getAngleMethod() {
+		return angleMethod;
+	}
+
+	/**
+	 * Set the method used to calculate the angle between AFP fragments.
+	 * Defaults to {@link AngleMethod#SUPERPOSITION}. Use
+	 * {@link AngleMethod#VALIDATE} to check how often the frames disagree
+	 * with it before switching to {@link AngleMethod#FRAMES}.
+	 *
+	 * @param angleMethod
+	 */
+	public void setAngleMethod(AngleMethod angleMethod) {
+		this.angleMethod = angleMethod;
+	}
+
+	/**
+	 * Number of AFPs in the last trace where the frame angle and the
+	 * superposition angle disagreed on the {@link #MIN_ANGLE} check. Only
+	 * counted with {@link AngleMethod#VALIDATE}.
+	 *
+	 * @return the number of mismatches
+	 */
+	public int getAngleMismatches() {
+		return angleMismatches;
+	}
+
+	/**
+	 * @return the pool used to trace the seeds in parallel, or null if the
+	 *         trace is serial
+	 */
+	public ForkJoinPool getSeedPool() {
+		return seedPool;
+	}
+
+	/**
+	 * Trace the seeds of the first iteration in parallel on the given pool.
+	 * The best traces are merged in the order of the seeds, so the alignment
+	 * is identical to the serial trace. Null (the default) for a serial
+	 * trace.
+	 *
+	 * @param seedPool
+	 */
+	public void setSeedPool(ForkJoinPool seedPool) {
+		this.seedPool = seedPool;
+	}
+
+	/**
+	 * @return the budget of the trace, or null to use the default limit of
+	 *         traces
+	 */
+	public TraceBudget getTraceBudget() {
+		return traceBudget;
+	}
+
+	/**
+	 * Set the budget of the trace. If null (the default), a new
+	 * {@link TraceBudget} with the default limit of traces is used.
+	 *
+	 * @param traceBudget
+	 */
+	public void setTraceBudget(TraceBudget traceBudget) {
+		this.traceBudget = traceBudget;
+	}
+
+	/**
+	 * @return true if the last trace was stopped because the trace budget
+	 *         ran out, so the alignment is based on the best trace found so
+	 *         far
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * @return the statistics filled by the trace, or null if nothing is
+	 *         counted
+	 */
+	public TraceStatistics getTraceStatistics() {
+		return traceStatistics;
+	}
+
+	/**
+	 * Set the statistics object to be filled by the trace. If null (the
+	 * default), nothing is counted.
+	 *
+	 * @param traceStatistics
+	 */
+	public void setTraceStatistics(TraceStatistics traceStatistics) {
+		this.traceStatistics = traceStatistics;
+	}
+
+	/**
+	 * @return the maximum number of angles kept in the angle cache, 0 if it
+	 *         is disabled
+	 */
+	public int getAngleCacheSize() {
+		return angleCacheSize;
+	}
+
+	/**
+	 * Set the maximum number of AFP angles calculated by superposition that
+	 * are kept during a trace. Defaults to {@link #DEFAULT_ANGLE_CACHE_SIZE}.
+	 *
+	 * @param angleCacheSize
+	 *            the number of angles, 0 to disable the cache
+	 */
+	public void setAngleCacheSize(int angleCacheSize) {
+		this.angleCacheSize = angleCacheSize;
+	}
+
+	/**
+	 * @return the number of angles found in the angle cache during the last
+	 *         trace
+	 */
+	public long getAngleCacheHits() {
+		return angleCache == null ? 0 : angleCache.getHits();
+	}
+
+	/**
+	 * @return the number of angles not found in the angle cache during the
+	 *         last trace
+	 */
+	public long getAngleCacheMisses() {
+		return angleCache == null ? 0 : angleCache.getMisses();
 	}
 
 }
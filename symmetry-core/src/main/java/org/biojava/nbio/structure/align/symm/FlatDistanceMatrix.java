@@ -0,0 +1,96 @@
+package org.biojava.nbio.structure.align.symm;
+
+import org.biojava.nbio.structure.Atom;
+
+/**
+ * Matrix of the distances between all the atoms of a structure, stored row by
+ * row in a single primitive array. Consecutive elements of a row, and of the
+ * diagonals used by CE, are at a constant stride in the array, so the loops
+ * over them do not need to dereference a row for each element.
+ */
+public class FlatDistanceMatrix {
+
+	private final int size;
+	private final double[] dist;
+
+	/**
+	 * Calculate the distances between all the atoms. The coordinates are
+	 * copied first to flat arrays (one for each axis).
+	 *
+	 * @param ca
+	 *            representative atoms of the structure
+	 */
+	public FlatDistanceMatrix(Atom[] ca) {
+		size = ca.length;
+
+		double[] x = new double[size];
+		double[] y = new double[size];
+		double[] z = new double[size];
+		for (int i = 0; i < size; i++) {
+			x[i] = ca[i].getX();
+			y[i] = ca[i].getY();
+			z[i] = ca[i].getZ();
+		}
+
+		dist = new double[size * size];
+		for (int i = 0; i < size; i++) {
+			int row = i * size;
+			for (int j = i; j < size; j++) {
+				double dx = x[i] - x[j];
+				double dy = y[i] - y[j];
+				double dz = z[i] - z[j];
+				double d = Math.sqrt(dx * dx + dy * dy + dz * dz);
+				dist[row + j] = d;
+				dist[j * size + i] = d;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of atoms
+	 */
+	public int size() {
+		return size;
+	}
+
+	public double get(int i, int j) {
+		return dist[i * size + j];
+	}
+
+	/**
+	 * @return the distances, the element (i,j) is at position i*size+j. The
+	 *         array is not copied.
+	 */
+	public double[] getDistances() {
+		return dist;
+	}
+
+	/**
+	 * @return a copy of the matrix as a double[][]
+	 */
+	public double[][] toArray() {
+		double[][] array = new double[size][size];
+		for (int i = 0; i < size; i++)
+			System.arraycopy(dist, i * size, array[i], 0, size);
+		return array;
+	}
+
+	/**
+	 * Copy the distances of the atoms repeated periodically, as for a
+	 * structure duplicated for a self-alignment.
+	 *
+	 * @param length
+	 *            number of atoms of the repetition
+	 * @return a copy of the matrix of the repeated atoms as a double[][]
+	 */
+	public double[][] toPeriodicArray(int length) {
+		double[][] array = new double[length][length];
+		for (int i = 0; i < length; i++) {
+			int row = (i % size) * size;
+			for (int j = 0; j < length; j++)
+				array[i][j] = dist[row + j % size];
+		}
+		return array;
+	}
+
+}
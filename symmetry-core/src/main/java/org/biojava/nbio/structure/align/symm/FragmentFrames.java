@@ -0,0 +1,194 @@
+package org.biojava.nbio.structure.align.symm;
+
+import javax.vecmath.Point3d;
+
+/**
+ * Local orientation frames for all the fragments (windows of consecutive
+ * atoms) of a structure, stored as unit quaternions.
+ * <p>
+ * The frame of a fragment is built from its first and last atoms and its
+ * centroid. The rotation angle between two fragments is then approximated by
+ * the angle between their frames, which only needs a quaternion dot product
+ * instead of a full superposition of the fragment atoms.
+ * <p>
+ * Fragments that are too straight to define a frame (the centroid lies on the
+ * line between the end atoms) are marked as undefined, and the angle has to
+ * be calculated by superposition for them.
+ */
+public class FragmentFrames {
+
+	/**
+	 * Minimum distance (in A) of the centroid to the end-to-end line of a
+	 * fragment for its frame to be defined.
+	 */
+	public static final double MIN_OFFSET = 0.5;
+
+	private final int winSize;
+	private final int size;
+	/** Quaternion (w,x,y,z) of each fragment, 4 consecutive values each */
+	private final double[] quats;
+	private final boolean[] defined;
+
+	/**
+	 * Calculate the frames of all the fragments of length winSize.
+	 *
+	 * @param points
+	 *            coordinates of the structure
+	 * @param winSize
+	 *            number of atoms in a fragment
+	 */
+	public FragmentFrames(Point3d[] points, int winSize) {
+		this.winSize = winSize;
+		this.size = Math.max(points.length - winSize + 1, 0);
+		this.quats = new double[4 * size];
+		this.defined = new boolean[size];
+
+		for (int f = 0; f < size; f++)
+			defined[f] = calcFrame(points, f);
+	}
+
+	/**
+	 * Calculate the frame of the fragment starting at atom f and store it as
+	 * a quaternion.
+	 *
+	 * @return true if the frame is defined, false otherwise
+	 */
+	private boolean calcFrame(Point3d[] points, int f) {
+
+		Point3d first = points[f];
+		Point3d last = points[f + winSize - 1];
+
+		// Centroid of the fragment
+		double cx = 0, cy = 0, cz = 0;
+		for (int i = f; i < f + winSize; i++) {
+			cx += points[i].x;
+			cy += points[i].y;
+			cz += points[i].z;
+		}
+		cx /= winSize;
+		cy /= winSize;
+		cz /= winSize;
+
+		// First axis: from the first to the last atom
+		double ax = last.x - first.x;
+		double ay = last.y - first.y;
+		double az = last.z - first.z;
+		double norm = Math.sqrt(ax * ax + ay * ay + az * az);
+		if (norm < MIN_OFFSET)
+			return false;
+		ax /= norm;
+		ay /= norm;
+		az /= norm;
+
+		// Second axis: perpendicular offset of the centroid
+		double bx = cx - first.x;
+		double by = cy - first.y;
+		double bz = cz - first.z;
+		double dot = bx * ax + by * ay + bz * az;
+		bx -= dot * ax;
+		by -= dot * ay;
+		bz -= dot * az;
+		norm = Math.sqrt(bx * bx + by * by + bz * bz);
+		if (norm < MIN_OFFSET)
+			return false;
+		bx /= norm;
+		by /= norm;
+		bz /= norm;
+
+		// Third axis: cross product of the other two
+		double ex = ay * bz - az * by;
+		double ey = az * bx - ax * bz;
+		double ez = ax * by - ay * bx;
+
+		// Rotation matrix with the axes as columns to quaternion
+		double m00 = ax, m01 = bx, m02 = ex;
+		double m10 = ay, m11 = by, m12 = ey;
+		double m20 = az, m21 = bz, m22 = ez;
+
+		double qw, qx, qy, qz;
+		double trace = m00 + m11 + m22;
+		if (trace > 0) {
+			double s = 0.5 / Math.sqrt(trace + 1.0);
+			qw = 0.25 / s;
+			qx = (m21 - m12) * s;
+			qy = (m02 - m20) * s;
+			qz = (m10 - m01) * s;
+		} else if (m00 > m11 && m00 > m22) {
+			double s = 2.0 * Math.sqrt(1.0 + m00 - m11 - m22);
+			qw = (m21 - m12) / s;
+			qx = 0.25 * s;
+			qy = (m01 + m10) / s;
+			qz = (m02 + m20) / s;
+		} else if (m11 > m22) {
+			double s = 2.0 * Math.sqrt(1.0 + m11 - m00 - m22);
+			qw = (m02 - m20) / s;
+			qx = (m01 + m10) / s;
+			qy = 0.25 * s;
+			qz = (m12 + m21) / s;
+		} else {
+			double s = 2.0 * Math.sqrt(1.0 + m22 - m00 - m11);
+			qw = (m10 - m01) / s;
+			qx = (m02 + m20) / s;
+			qy = (m12 + m21) / s;
+			qz = 0.25 * s;
+		}
+
+		norm = Math.sqrt(qw * qw + qx * qx + qy * qy + qz * qz);
+		quats[4 * f] = qw / norm;
+		quats[4 * f + 1] = qx / norm;
+		quats[4 * f + 2] = qy / norm;
+		quats[4 * f + 3] = qz / norm;
+
+		return true;
+	}
+
+	/**
+	 * @return the number of fragments
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of atoms in a fragment
+	 */
+	public int getWinSize() {
+		return winSize;
+	}
+
+	/**
+	 * @param frag
+	 *            index of the first atom of the fragment
+	 * @return true if the frame of the fragment could be calculated
+	 */
+	public boolean isDefined(int frag) {
+		return frag >= 0 && frag < size && defined[frag];
+	}
+
+	/**
+	 * Rotation angle between a fragment of this structure and a fragment of
+	 * another (or the same) structure, given by the angle between their
+	 * frames. Both frames need to be {@link #isDefined(int) defined}.
+	 *
+	 * @param frag1
+	 *            index of the fragment in this structure
+	 * @param other
+	 *            frames of the second structure
+	 * @param frag2
+	 *            index of the fragment in the second structure
+	 * @return the rotation angle, in radians
+	 */
+	public double getAngle(int frag1, FragmentFrames other, int frag2) {
+		double[] q1 = quats;
+		double[] q2 = other.quats;
+		int i = 4 * frag1;
+		int j = 4 * frag2;
+		double dot = q1[i] * q2[j] + q1[i + 1] * q2[j + 1] + q1[i + 2]
+				* q2[j + 2] + q1[i + 3] * q2[j + 3];
+		dot = Math.abs(dot);
+		if (dot > 1.0)
+			dot = 1.0;
+		return 2.0 * Math.acos(dot);
+	}
+
+}
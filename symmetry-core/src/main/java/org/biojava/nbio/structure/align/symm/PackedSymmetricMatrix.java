@@ -0,0 +1,72 @@
+package org.biojava.nbio.structure.align.symm;
+
+/**
+ * Symmetric square matrix that only stores its upper triangle (including the
+ * diagonal), packed row by row in a single primitive array.
+ * <p>
+ * Self-alignments produce symmetric distance and similarity matrices, so this
+ * needs about half the memory of the equivalent double[][].
+ */
+public class PackedSymmetricMatrix {
+
+	private final int size;
+	private final double[] values;
+
+	/**
+	 * Creates a matrix of the given size, filled with zeros.
+	 *
+	 * @param size
+	 *            number of rows and columns
+	 */
+	public PackedSymmetricMatrix(int size) {
+		this.size = size;
+		this.values = new double[size * (size + 1) / 2];
+	}
+
+	/**
+	 * @return the number of rows and columns of the matrix
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Position of the element (i,j) in the packed array. Lower triangle
+	 * elements are mapped to their symmetric element.
+	 */
+	private int index(int i, int j) {
+		if (i > j) {
+			int tmp = i;
+			i = j;
+			j = tmp;
+		}
+		return i * size - i * (i - 1) / 2 + j - i;
+	}
+
+	public double get(int i, int j) {
+		return values[index(i, j)];
+	}
+
+	/**
+	 * Sets both the (i,j) and (j,i) elements of the matrix.
+	 */
+	public void set(int i, int j, double value) {
+		values[index(i, j)] = value;
+	}
+
+	/**
+	 * @return a full copy of the matrix as a double[][]
+	 */
+	public double[][] toArray() {
+		double[][] array = new double[size][size];
+		for (int i = 0; i < size; i++) {
+			for (int j = i; j < size; j++) {
+				double v = get(i, j);
+				array[i][j] = v;
+				array[j][i] = v;
+			}
+		}
+		return array;
+	}
+
+}
@@ -0,0 +1,119 @@
+package org.biojava.nbio.structure.align.symm;
+
+/**
+ * Similarity matrix of the AFPs of a structure against the same structure
+ * repeated periodically, like the duplicated atoms of CE-Symm. The element
+ * (i,j) is the AFP of the fragment starting at atom i of the structure and
+ * the fragment starting at atom j of the repetition, whose atoms are taken
+ * modulo the period.
+ * <p>
+ * The AFPs of two fragments inside the period form a symmetric matrix, kept
+ * in a {@link PackedSymmetricMatrix}, and every period of the columns repeats
+ * it. Only the fragments that cross the end of a period are stored apart,
+ * winSize-1 columns for each row. For a structure duplicated to twice its
+ * length, this needs about a quarter of the memory of the equivalent
+ * double[][].
+ * <p>
+ * The undefined AFPs, whose fragments do not fit in the structure or in its
+ * repetition, are always -1.
+ */
+public class PeriodicSymmetricMatrix {
+
+	private final int period;
+	private final int length;
+	private final int winSize;
+	/** AFPs of the fragments inside the period */
+	private final PackedSymmetricMatrix inner;
+	/** AFPs of the fragments that cross the end of the period, by rows */
+	private final double[] crossing;
+	private final int crossingCols;
+
+	/**
+	 * Creates a matrix of period rows and length columns, with all the defined
+	 * AFPs set to zero.
+	 *
+	 * @param period
+	 *            number of atoms of the structure
+	 * @param length
+	 *            number of atoms of the repetition, a multiple of the period
+	 * @param winSize
+	 *            number of atoms of the fragments
+	 */
+	public PeriodicSymmetricMatrix(int period, int length, int winSize) {
+		if (period < 1 || length < period || length % period != 0)
+			throw new IllegalArgumentException("Invalid period " + period
+					+ " for a length of " + length);
+		if (winSize < 1)
+			throw new IllegalArgumentException("Invalid fragment length: "
+					+ winSize);
+		this.period = period;
+		this.length = length;
+		this.winSize = winSize;
+		inner = new PackedSymmetricMatrix(period);
+		crossingCols = length > period ? Math.min(winSize - 1, period) : 0;
+		crossing = new double[period * crossingCols];
+	}
+
+	/**
+	 * @return the number of rows, the period
+	 */
+	public int getRows() {
+		return period;
+	}
+
+	/**
+	 * @return the number of columns, the length of the repetition
+	 */
+	public int getCols() {
+		return length;
+	}
+
+	/**
+	 * @return true if the fragments of the AFP (i,j) fit in the structure and
+	 *         in its repetition
+	 */
+	public boolean isDefined(int i, int j) {
+		return i <= period - winSize && j <= length - winSize;
+	}
+
+	public double get(int i, int j) {
+		if (!isDefined(i, j))
+			return -1.0;
+		int c = j % period;
+		if (c <= period - winSize)
+			return inner.get(i, c);
+		return crossing[i * crossingCols + c - (period - winSize + 1)];
+	}
+
+	/**
+	 * Sets the AFP (i,j), which is the same AFP as (i,j') for every column j'
+	 * in another period. If the fragment j is inside the period, the
+	 * symmetric AFP (j mod period, i) is set too.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the AFP is not {@link #isDefined(int, int) defined}
+	 */
+	public void set(int i, int j, double value) {
+		if (!isDefined(i, j))
+			throw new IllegalArgumentException("Undefined AFP (" + i + ","
+					+ j + ")");
+		int c = j % period;
+		if (c <= period - winSize)
+			inner.set(i, c, value);
+		else
+			crossing[i * crossingCols + c - (period - winSize + 1)] = value;
+	}
+
+	/**
+	 * @return a full copy of the matrix as a double[][]
+	 */
+	public double[][] toArray() {
+		double[][] array = new double[period][length];
+		for (int i = 0; i < period; i++) {
+			for (int j = 0; j < length; j++)
+				array[i][j] = get(i, j);
+		}
+		return array;
+	}
+
+}
@@ -0,0 +1,91 @@
+package org.biojava.nbio.structure.align.symm;
+
+/**
+ * Limits the work done by the trace of {@link CESymmCalculator}, either by the
+ * number of traces tried or by a wall-clock deadline. When the budget runs out
+ * the trace stops and keeps the best trace found so far, and the budget is
+ * marked as {@link #isTruncated() truncated}.
+ * <p>
+ * A budget is meant to be used for a single job (which can run several
+ * traces): the deadline counts from the first time it is {@link #start()
+ * started}.
+ */
+public class TraceBudget {
+
+	/** Number of traces after which CE stops looking for longer traces */
+	public static final long DEFAULT_MAX_TRACES = (long) 5e7;
+
+	private final long maxTraces;
+	private final long timeLimit;
+
+	private long deadline = -1;
+	private volatile boolean truncated = false;
+
+	/**
+	 * Default budget, with the trace limit of CE and no time limit.
+	 */
+	public TraceBudget() {
+		this(DEFAULT_MAX_TRACES, 0);
+	}
+
+	/**
+	 * @param maxTraces
+	 *            maximum number of traces tried in each trace of the job
+	 * @param timeLimit
+	 *            maximum running time of the job, in milliseconds. 0 or
+	 *            negative for no limit
+	 */
+	public TraceBudget(long maxTraces, long timeLimit) {
+		if (maxTraces < 1)
+			throw new IllegalArgumentException("Invalid number of traces: "
+					+ maxTraces);
+		this.maxTraces = maxTraces;
+		this.timeLimit = timeLimit;
+	}
+
+	/**
+	 * Start the clock of the time limit. Only the first call has an effect.
+	 */
+	public synchronized void start() {
+		if (deadline < 0 && timeLimit > 0)
+			deadline = System.nanoTime() + timeLimit * 1000000L;
+	}
+
+	/**
+	 * @return true if the time limit has been reached
+	 */
+	public boolean isExpired() {
+		return deadline >= 0 && System.nanoTime() - deadline > 0;
+	}
+
+	/**
+	 * @return the maximum number of traces tried in each trace
+	 */
+	public long getMaxTraces() {
+		return maxTraces;
+	}
+
+	/**
+	 * @return the time limit of the job, in milliseconds, 0 or negative if
+	 *         there is no limit
+	 */
+	public long getTimeLimit() {
+		return timeLimit;
+	}
+
+	/**
+	 * @return true if a trace was stopped before completion, so the alignment
+	 *         is based on the best trace found within the budget
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * Mark that a trace was stopped because the budget ran out.
+	 */
+	public void setTruncated() {
+		truncated = true;
+	}
+
+}
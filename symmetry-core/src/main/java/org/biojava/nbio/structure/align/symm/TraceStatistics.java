@@ -0,0 +1,153 @@
+package org.biojava.nbio.structure.align.symm;
+
+import java.util.Arrays;
+
+/**
+ * Counters of the work done by the trace of {@link CESymmCalculator}, to find
+ * out why the analysis of a structure is slow. The counters are only updated
+ * if a statistics object is set in the calculator, and they accumulate over
+ * all the traces until {@link #reset()}.
+ * <p>
+ * When seeds are traced in parallel, the work of all the seed workers is
+ * counted, which can be more than the serial trace does.
+ */
+public class TraceStatistics {
+
+	long seeds;
+	long extensions;
+	long rmsdRejections;
+	long angleRejections;
+	long angleCalculations;
+	long traces;
+	long prunedTraces;
+	private long[] iterTimes = new long[1];
+
+	/**
+	 * Set all the counters to 0.
+	 */
+	public void reset() {
+		seeds = 0;
+		extensions = 0;
+		rmsdRejections = 0;
+		angleRejections = 0;
+		angleCalculations = 0;
+		traces = 0;
+		prunedTraces = 0;
+		Arrays.fill(iterTimes, 0);
+	}
+
+	/**
+	 * Add the counters of another statistics object to this one.
+	 */
+	public void add(TraceStatistics other) {
+		seeds += other.seeds;
+		extensions += other.extensions;
+		rmsdRejections += other.rmsdRejections;
+		angleRejections += other.angleRejections;
+		angleCalculations += other.angleCalculations;
+		traces += other.traces;
+		prunedTraces += other.prunedTraces;
+		for (int i = 0; i < other.iterTimes.length; i++)
+			addIterTime(i, other.iterTimes[i]);
+	}
+
+	void addIterTime(int iter, long nanos) {
+		if (iter >= iterTimes.length)
+			iterTimes = Arrays.copyOf(iterTimes, iter + 1);
+		iterTimes[iter] += nanos;
+	}
+
+	/**
+	 * @return the number of AFPs used as the start of a trace
+	 */
+	public long getSeeds() {
+		return seeds;
+	}
+
+	/**
+	 * @return the number of admissible AFPs scored as the extension of a
+	 *         trace
+	 */
+	public long getExtensions() {
+		return extensions;
+	}
+
+	/**
+	 * @return the number of extensions rejected because the RMSD of the
+	 *         extended trace was above the thresholds
+	 */
+	public long getRmsdRejections() {
+		return rmsdRejections;
+	}
+
+	/**
+	 * @return the number of extensions rejected because the rotation angle
+	 *         was below {@link CESymmCalculator#MIN_ANGLE}
+	 */
+	public long getAngleRejections() {
+		return angleRejections;
+	}
+
+	/**
+	 * @return the number of rotation angles calculated by superposition of
+	 *         the fragments
+	 */
+	public long getAngleCalculations() {
+		return angleCalculations;
+	}
+
+	/**
+	 * @return the number of traces compared with the best traces (one for
+	 *         every accepted extension)
+	 */
+	public long getTraces() {
+		return traces;
+	}
+
+	/**
+	 * @return the number of traces abandoned because their extensions could
+	 *         not change the best traces, see
+	 *         {@link CESymmCalculator#setPruning(boolean)}
+	 */
+	public long getPrunedTraces() {
+		return prunedTraces;
+	}
+
+	/**
+	 * @return the number of iterations with a measured time
+	 */
+	public int getIterations() {
+		return iterTimes.length;
+	}
+
+	/**
+	 * @param iter
+	 *            iteration of the trace, starting at 0
+	 * @return the time spent in the iteration, in milliseconds
+	 */
+	public double getIterTime(int iter) {
+		if (iter >= iterTimes.length)
+			return 0;
+		return iterTimes[iter] / 1e6;
+	}
+
+	/**
+	 * @return the time spent in all the iterations, in milliseconds
+	 */
+	public double getTotalTime() {
+		long total = 0;
+		for (long t : iterTimes)
+			total += t;
+		return total / 1e6;
+	}
+
+	@Override
+	public String toString() {
+		return "TraceStatistics [seeds=" + seeds + ", extensions="
+				+ extensions + ", rmsdRejections=" + rmsdRejections
+				+ ", angleRejections=" + angleRejections
+				+ ", angleCalculations=" + angleCalculations + ", traces="
+				+ traces + ", prunedTraces=" + prunedTraces + ", time=" + getTotalTime() + "ms]";
+	}
+
+}
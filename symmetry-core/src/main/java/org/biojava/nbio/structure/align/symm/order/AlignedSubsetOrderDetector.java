@@ -0,0 +1,231 @@
+package org.biojava.nbio.structure.align.symm.order;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.align.model.AFPChain;
+import org.biojava.nbio.structure.symmetry.internal.OrderDetector;
+import org.biojava.nbio.structure.symmetry.internal.RefinerFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a rotation-based order detector (e.g. {@link RotationOrderDetector},
+ * {@link HybridOrderDetector}, {@link PeakCountingOrderDetector} or
+ * {@link FourierOrderDetector}) on the residues of the optimal alignment
+ * only, so that unaligned loops and tails do not enter the superposition
+ * distances, which are quadratic in the number of atoms. The aligned residues
+ * can be further subsampled with a stride.
+ * <p>
+ * The detector must only depend on the atoms through their coordinates, not
+ * on their positions in the alignment. With validation, the order is also
+ * calculated on all the atoms, to report the agreement and the speedup of the
+ * subset.
+ */
+public class AlignedSubsetOrderDetector implements ContextOrderDetector {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(AlignedSubsetOrderDetector.class);
+
+	private final OrderDetector detector;
+	private int stride = 1;
+	private boolean validation = false;
+
+	private final AtomicLong calls = new AtomicLong();
+	private final AtomicLong atoms = new AtomicLong();
+	private final AtomicLong subsetAtoms = new AtomicLong();
+	private final AtomicLong validated = new AtomicLong();
+	private final AtomicLong agreements = new AtomicLong();
+	private final AtomicLong subsetTime = new AtomicLong();
+	private final AtomicLong fullTime = new AtomicLong();
+
+	/**
+	 * @param detector
+	 *            rotation-based detector to run on the aligned residues
+	 */
+	public AlignedSubsetOrderDetector(OrderDetector detector) {
+		this(detector, 1);
+	}
+
+	/**
+	 * @param detector
+	 *            rotation-based detector to run on the aligned residues
+	 * @param stride
+	 *            use every stride-th aligned residue
+	 */
+	public AlignedSubsetOrderDetector(OrderDetector detector, int stride) {
+		if (detector == null)
+			throw new IllegalArgumentException("Null detector");
+		this.detector = detector;
+		setStride(stride);
+	}
+
+	@Override
+	public int calculateOrder(AFPChain afpChain, Atom[] ca)
+			throws RefinerFailedException {
+		return calculateOrder(new OrderDetectionContext(afpChain, ca));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The wrapped detector runs in a context for the subset, which shares the
+	 * axis of this context.
+	 */
+	@Override
+	public int calculateOrder(OrderDetectionContext context)
+			throws RefinerFailedException {
+		Atom[] ca = context.getAtoms();
+		Atom[] subset = getAlignedAtoms(context.getAfpChain(), ca, stride);
+		OrderDetectionContext subsetContext;
+		if (subset.length == 0) {
+			// nothing aligned
+			subset = ca;
+			subsetContext = context;
+		} else {
+			subsetContext = context.withAtoms(subset);
+		}
+
+		long start = System.nanoTime();
+		int order = subsetContext.calculateOrder(detector);
+		long time = System.nanoTime() - start;
+
+		calls.incrementAndGet();
+		atoms.addAndGet(ca.length);
+		subsetAtoms.addAndGet(subset.length);
+
+		if (validation) {
+			start = System.nanoTime();
+			int fullOrder = context.calculateOrder(detector);
+			fullTime.addAndGet(System.nanoTime() - start);
+			subsetTime.addAndGet(time);
+			validated.incrementAndGet();
+			if (fullOrder == order) {
+				agreements.incrementAndGet();
+			} else {
+				logger.debug("Order {} on {} aligned atoms, {} on all {} atoms",
+						order, subset.length, fullOrder, ca.length);
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Select the residues of the optimal alignment, on either side.
+	 * Positions beyond the end of ca, as in an alignment to a duplicated
+	 * structure, wrap around.
+	 *
+	 * @param afpChain
+	 *            alignment of the structure to itself, or null to select all
+	 *            the atoms
+	 * @param ca
+	 *            atoms of the structure
+	 * @param stride
+	 *            keep every stride-th aligned residue
+	 * @return the aligned atoms, in the order of ca. They are not copied.
+	 */
+	public static Atom[] getAlignedAtoms(AFPChain afpChain, Atom[] ca,
+			int stride) {
+		BitSet aligned = new BitSet(ca.length);
+		int[][][] optAln = afpChain == null ? null : afpChain.getOptAln();
+		int[] optLen = afpChain == null ? null : afpChain.getOptLen();
+		if (afpChain == null) {
+			aligned.set(0, ca.length);
+		} else if (optAln != null && ca.length > 0) {
+			for (int block = 0; block < afpChain.getBlockNum(); block++) {
+				for (int side = 0; side < 2; side++) {
+					for (int pos = 0; pos < optLen[block]; pos++) {
+						aligned.set(optAln[block][side][pos] % ca.length);
+					}
+				}
+			}
+		}
+
+		Atom[] subset = new Atom[(aligned.cardinality() + stride - 1) / stride];
+		int n = 0;
+		int rank = 0;
+		for (int i = aligned.nextSetBit(0); i >= 0; i = aligned.nextSetBit(i + 1)) {
+			if (rank++ % stride == 0)
+				subset[n++] = ca[i];
+		}
+		return subset;
+	}
+
+	/**
+	 * @return the wrapped detector
+	 */
+	public OrderDetector getDetector() {
+		return detector;
+	}
+
+	public int getStride() {
+		return stride;
+	}
+
+	/**
+	 * @param stride
+	 *            use every stride-th aligned residue (default 1, all)
+	 */
+	public void setStride(int stride) {
+		if (stride < 1)
+			throw new IllegalArgumentException("Invalid stride: " + stride);
+		this.stride = stride;
+	}
+
+	public boolean isValidation() {
+		return validation;
+	}
+
+	/**
+	 * @param validation
+	 *            also calculate the order on all the atoms, to count the
+	 *            agreement and measure the speedup (default false)
+	 */
+	public void setValidation(boolean validation) {
+		this.validation = validation;
+	}
+
+	/**
+	 * @return the number of orders calculated
+	 */
+	public long getCalls() {
+		return calls.get();
+	}
+
+	/**
+	 * @return the fraction of the atoms used, over all the calls
+	 */
+	public double getAtomFraction() {
+		return (double) subsetAtoms.get() / atoms.get();
+	}
+
+	/**
+	 * @return the number of orders also calculated on all the atoms
+	 */
+	public long getValidated() {
+		return validated.get();
+	}
+
+	/**
+	 * @return the fraction of the validated orders that are the same with all
+	 *         the atoms, or NaN without validation
+	 */
+	public double getAgreement() {
+		return (double) agreements.get() / validated.get();
+	}
+
+	/**
+	 * @return the time with all the atoms over the time with the subset, for
+	 *         the validated orders, or NaN without validation
+	 */
+	public double getSpeedup() {
+		return (double) fullTime.get() / subsetTime.get();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[detector=" + detector
+				+ ",stride=" + stride + ",validation=" + validation + "]";
+	}
+}
@@ -2,8 +2,6 @@ package org.biojava.nbio.structure.align.symm.order;
 
 import org.biojava.nbio.structure.Atom;
 import org.biojava.nbio.structure.align.model.AFPChain;
-import org.biojava.nbio.structure.align.util.RotationAxis;
-import org.biojava.nbio.structure.symmetry.internal.OrderDetector;
 import org.biojava.nbio.structure.symmetry.internal.RefinerFailedException;
 
 /**
@@ -17,7 +15,7 @@ import org.biojava.nbio.structure.symmetry.internal.RefinerFailedException;
  * @author dmyersturnbull
  */
 @Deprecated
-public class AngleOrderDetector implements OrderDetector {
+public class AngleOrderDetector implements ContextOrderDetector {
 
 	private int maxOrder = 8;
 	private final double angleError;
@@ -43,10 +41,14 @@ public class AngleOrderDetector implements OrderDetector {
 
 	@Override
 	public int calculateOrder(AFPChain afpChain, Atom[] ca) throws RefinerFailedException {
+		return calculateOrder(new OrderDetectionContext(afpChain, ca));
+	}
+
+	@Override
+	public int calculateOrder(OrderDetectionContext context) throws RefinerFailedException {
 		
 		try {
-			RotationAxis axis = new RotationAxis(afpChain);
-			double theta = axis.getAngle();
+			double theta = context.getAngle();
 
 			double bestDelta = angleError;
 			int bestOrder = 1;
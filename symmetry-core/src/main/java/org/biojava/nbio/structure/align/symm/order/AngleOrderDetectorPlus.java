@@ -4,8 +4,6 @@ import static java.lang.Math.*;
 
 import org.biojava.nbio.structure.Atom;
 import org.biojava.nbio.structure.align.model.AFPChain;
-import org.biojava.nbio.structure.align.util.RotationAxis;
-import org.biojava.nbio.structure.symmetry.internal.OrderDetector;
 import org.biojava.nbio.structure.symmetry.internal.RefinerFailedException;
 
 /**
@@ -15,7 +13,7 @@ import org.biojava.nbio.structure.symmetry.internal.RefinerFailedException;
  * not just the base one.
  * @author blivens
  */
-public class AngleOrderDetectorPlus implements OrderDetector {
+public class AngleOrderDetectorPlus implements ContextOrderDetector {
 
 	private int maxOrder;
 	private final double error;
@@ -65,10 +63,14 @@ public class AngleOrderDetectorPlus implements OrderDetector {
 
 	@Override
 	public int calculateOrder(AFPChain afpChain, Atom[] ca) throws RefinerFailedException {
+		return calculateOrder(new OrderDetectionContext(afpChain, ca));
+	}
+
+	@Override
+	public int calculateOrder(OrderDetectionContext context) throws RefinerFailedException {
 		final double tol = 1e-6; // tolerance to floating point errors
 		try {
-			RotationAxis axis = new RotationAxis(afpChain);
-			double theta = axis.getAngle();
+			double theta = context.getAngle();
 
 			double bestDelta = error;
 			int bestOrder = 1;
@@ -0,0 +1,26 @@
+package org.biojava.nbio.structure.align.symm.order;
+
+import org.biojava.nbio.structure.symmetry.internal.OrderDetector;
+import org.biojava.nbio.structure.symmetry.internal.RefinerFailedException;
+
+/**
+ * An {@link OrderDetector} that can take the axis and the rotation profiles
+ * from an {@link OrderDetectionContext}, so that they are shared with the
+ * other detectors run on the same alignment.
+ * <p>
+ * Implementations should calculate
+ * {@link #calculateOrder(org.biojava.nbio.structure.align.model.AFPChain, org.biojava.nbio.structure.Atom[])
+ * calculateOrder(afpChain, ca)} in a new context.
+ */
+public interface ContextOrderDetector extends OrderDetector {
+
+	/**
+	 * @param context
+	 *            the alignment and the atoms, with the values already
+	 *            calculated for them
+	 * @return the order
+	 * @throws RefinerFailedException
+	 */
+	public int calculateOrder(OrderDetectionContext context)
+			throws RefinerFailedException;
+}
@@ -0,0 +1,268 @@
+package org.biojava.nbio.structure.align.symm.order;
+
+import static java.lang.Math.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.align.symm.order.RotationOrderDetector.NeighborSearch;
+import org.biojava.nbio.structure.align.util.RotationAxis;
+
+/**
+ * Evaluates the {@link RotationOrderDetector#superpositionDistance(Atom[], Atom[])
+ * superposition distance} of a structure rotated around an axis, at any angle.
+ * <p>
+ * The coordinates are converted once to a frame aligned with the axis, where
+ * each atom has a height h along the axis and a position (r*cos(phi),
+ * r*sin(phi)) in the plane perpendicular to it. A rotation by theta is then a
+ * phase shift phi+theta, which is evaluated with a single 2D rotation of the
+ * stored coordinates. Every angle is computed from the original coordinates,
+ * so no error accumulates over the sweep, and the buffers are reused, so no
+ * atoms are cloned or allocated per angle.
+ * <p>
+ * Since the angles are independent, they can also be
+ * {@link #getSuperpositionDistances(double[], ForkJoinPool) evaluated in
+ * parallel}, each worker with its own buffers. Otherwise instances are not
+ * thread-safe.
+ */
+public class CylindricalSweep {
+
+	/** Smallest structure for which the angles are evaluated in parallel */
+	public static final int MIN_PARALLEL_ATOMS = 300;
+	/** Number of blocks of angles per thread of the pool, to balance the load */
+	private static final int BLOCKS_PER_THREAD = 4;
+
+	// coordinates in the frame of the axis: (x,y) in the perpendicular plane
+	private final double[] x;
+	private final double[] y;
+	private final double[] h;
+
+	/** Grid of the unrotated atoms, or null for the brute-force search */
+	private final NeighborGrid grid;
+
+	/** Buffers of the serial evaluation */
+	private final Workspace workspace;
+
+	/**
+	 * @param ca
+	 *            Atoms to rotate. They are not modified.
+	 * @param axis
+	 *            Axis about which to rotate ca. It must have a
+	 *            {@link RotationAxis#getRotationPos() position}.
+	 * @param search
+	 *            how to find the closest atoms
+	 */
+	public CylindricalSweep(Atom[] ca, RotationAxis axis, NeighborSearch search) {
+		Atom pos = axis.getRotationPos();
+		if (pos == null)
+			throw new IllegalArgumentException(
+					"Rotation axis without a position");
+		Atom dir = axis.getRotationAxis();
+
+		// Orthonormal frame (u,v,w) with w along the axis
+		double[] w = normalize(new double[] { dir.getX(), dir.getY(), dir.getZ() });
+		// start u from the coordinate axis most perpendicular to w
+		double[] u;
+		if (abs(w[0]) <= abs(w[1]) && abs(w[0]) <= abs(w[2]))
+			u = new double[] { 0, -w[2], w[1] };
+		else if (abs(w[1]) <= abs(w[2]))
+			u = new double[] { -w[2], 0, w[0] };
+		else
+			u = new double[] { -w[1], w[0], 0 };
+		u = normalize(u);
+		double[] v = new double[] { w[1] * u[2] - w[2] * u[1],
+				w[2] * u[0] - w[0] * u[2], w[0] * u[1] - w[1] * u[0] };
+
+		int n = ca.length;
+		x = new double[n];
+		y = new double[n];
+		h = new double[n];
+		for (int i = 0; i < n; i++) {
+			double px = ca[i].getX() - pos.getX();
+			double py = ca[i].getY() - pos.getY();
+			double pz = ca[i].getZ() - pos.getZ();
+			x[i] = px * u[0] + py * u[1] + pz * u[2];
+			y[i] = px * v[0] + py * v[1] + pz * v[2];
+			h[i] = px * w[0] + py * w[1] + pz * w[2];
+		}
+
+		if (search == NeighborSearch.GRID && n >= RotationOrderDetector.MIN_GRID_ATOMS)
+			grid = new NeighborGrid(x, y, h);
+		else
+			grid = null;
+		workspace = new Workspace();
+	}
+
+	/**
+	 * Buffers for the evaluation of one angle at a time.
+	 */
+	private class Workspace {
+		// rotated coordinates, recomputed for each angle
+		final double[] rotX = new double[x.length];
+		final double[] rotY = new double[x.length];
+		// coordinates rotated by the opposite angle, for the grid search
+		final double[] invX = grid == null ? null : new double[x.length];
+		final double[] invY = grid == null ? null : new double[x.length];
+		// closest squared distances, for the brute-force search
+		final double[] bestDist1 = grid == null ? new double[x.length] : null;
+		final double[] bestDist2 = grid == null ? new double[x.length] : null;
+	}
+
+	private static double[] normalize(double[] a) {
+		double norm = sqrt(a[0] * a[0] + a[1] * a[1] + a[2] * a[2]);
+		return new double[] { a[0] / norm, a[1] / norm, a[2] / norm };
+	}
+
+	/**
+	 * @return the number of atoms
+	 */
+	public int size() {
+		return x.length;
+	}
+
+	/**
+	 * Calculate the superposition distance between the structure and its
+	 * copy rotated by an angle.
+	 *
+	 * @param angle
+	 *            rotation angle, in radians
+	 * @return the average distance to the closest atom
+	 * @throws CancellationException
+	 *             if the current thread is interrupted
+	 */
+	public double getSuperpositionDistance(double angle) {
+		return getSuperpositionDistance(angle, workspace);
+	}
+
+	private double getSuperpositionDistance(double angle, Workspace ws) {
+		RotationOrderDetector.checkInterrupted();
+		double[] rotX = ws.rotX, rotY = ws.rotY;
+		int n = x.length;
+		double cos = Math.cos(angle);
+		double sin = Math.sin(angle);
+		for (int i = 0; i < n; i++) {
+			rotX[i] = x[i] * cos - y[i] * sin;
+			rotY[i] = x[i] * sin + y[i] * cos;
+		}
+
+		double total = 0;
+		if (grid == null) {
+			double[] bestDist1 = ws.bestDist1, bestDist2 = ws.bestDist2;
+			Arrays.fill(bestDist1, Double.POSITIVE_INFINITY);
+			Arrays.fill(bestDist2, Double.POSITIVE_INFINITY);
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < n; j++) {
+					double dx = x[i] - rotX[j];
+					double dy = y[i] - rotY[j];
+					double dz = h[i] - h[j];
+					double dist = dx * dx + dy * dy + dz * dz;
+					if (dist < bestDist1[i])
+						bestDist1[i] = dist;
+					if (dist < bestDist2[j])
+						bestDist2[j] = dist;
+				}
+			}
+			for (int i = 0; i < n; i++)
+				total += sqrt(bestDist1[i]);
+			for (int j = 0; j < n; j++)
+				total += sqrt(bestDist2[j]);
+		} else {
+			// The closest rotated atom to an atom is the closest unrotated
+			// atom to the atom rotated backwards, so one grid serves both
+			double[] invX = ws.invX, invY = ws.invY;
+			for (int i = 0; i < n; i++) {
+				invX[i] = x[i] * cos + y[i] * sin;
+				invY[i] = -x[i] * sin + y[i] * cos;
+			}
+			for (int i = 0; i < n; i++)
+				total += sqrt(grid.getNearestDistanceSquared(invX[i], invY[i], h[i]));
+			for (int j = 0; j < n; j++)
+				total += sqrt(grid.getNearestDistanceSquared(rotX[j], rotY[j], h[j]));
+		}
+		return total / (2 * n);
+	}
+
+	/**
+	 * @param angles
+	 *            rotation angles, in radians
+	 * @return the superposition distance for each angle
+	 */
+	public double[] getSuperpositionDistances(double[] angles) {
+		double[] distances = new double[angles.length];
+		for (int step = 0; step < angles.length; step++)
+			distances[step] = getSuperpositionDistance(angles[step]);
+		return distances;
+	}
+
+	/**
+	 * Evaluate the angles in parallel on a pool, if the structure is large
+	 * enough and the pool has idle threads. Otherwise, or if the pool is null,
+	 * the angles are evaluated serially. The distances are the same in both
+	 * cases.
+	 *
+	 * @param angles
+	 *            rotation angles, in radians
+	 * @param pool
+	 *            shared pool, e.g. {@link ForkJoinPool#commonPool()}, or null
+	 * @return the superposition distance for each angle
+	 */
+	public double[] getSuperpositionDistances(final double[] angles,
+			ForkJoinPool pool) {
+		if (pool == null || x.length < MIN_PARALLEL_ATOMS
+				|| !isUnderloaded(pool))
+			return getSuperpositionDistances(angles);
+
+		int nBlocks = Math.min(angles.length, pool.getParallelism()
+				* BLOCKS_PER_THREAD);
+		if (nBlocks < 2)
+			return getSuperpositionDistances(angles);
+
+		final double[] distances = new double[angles.length];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(nBlocks);
+		for (int b = 0; b < nBlocks; b++) {
+			final int from = (int) ((long) angles.length * b / nBlocks);
+			final int to = (int) ((long) angles.length * (b + 1) / nBlocks);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					Workspace ws = new Workspace();
+					for (int step = from; step < to; step++)
+						distances[step] = getSuperpositionDistance(
+								angles[step], ws);
+					return null;
+				}
+			});
+		}
+
+		try {
+			for (Future<Void> future : pool.invokeAll(tasks))
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			CancellationException cancelled = new CancellationException(
+					"Interrupted while sampling the rotations");
+			cancelled.initCause(e);
+			throw cancelled;
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Error sampling the rotations",
+					e.getCause());
+		}
+		return distances;
+	}
+
+	/**
+	 * @return true if some threads of the pool are idle and no work is
+	 *         waiting, so that the sweep does not delay other tasks
+	 */
+	private static boolean isUnderloaded(ForkJoinPool pool) {
+		return pool.getActiveThreadCount() < pool.getParallelism()
+				&& pool.getQueuedSubmissionCount() == 0;
+	}
+}
@@ -0,0 +1,446 @@
+package org.biojava.nbio.structure.align.symm.order;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.align.model.AFPChain;
+import org.biojava.nbio.structure.symmetry.internal.OrderDetector;
+import org.biojava.nbio.structure.symmetry.internal.RefinerFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs several order detectors concurrently on the same alignment and
+ * combines their orders by a weighted vote.
+ * <p>
+ * The members run on an executor, in one {@link OrderDetectionContext}, so
+ * that they calculate the axis and the common rotation profiles once. By
+ * default the ensemble owns a bounded pool of daemon threads, which exit when
+ * idle. Each member has until the deadline, counted from its own start, to
+ * return its order. Members that miss it, or fail, do not vote.
+ * <p>
+ * With fewer threads than members, the last members wait in the queue until a
+ * thread is free, so the ensemble can take up to the deadline times the
+ * number of members. Members that are still queued after that do not vote
+ * either.
+ * <p>
+ * Members past their deadline are interrupted. The detectors of this package
+ * stop at the next rotation sampled or alignment traced, and free their
+ * thread. Other detectors may keep it until they finish, but the ensemble
+ * does not wait for them.
+ * <p>
+ * The order with the highest total weight wins, and ties go to the lowest
+ * order.
+ */
+public class EnsembleOrderDetector implements ContextOrderDetector {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(EnsembleOrderDetector.class);
+
+	/** Default deadline for each member, in milliseconds */
+	public static final long DEFAULT_TIMEOUT = 10000;
+	/** Default number of threads of the pool owned by the ensemble */
+	public static final int DEFAULT_THREADS = Runtime.getRuntime()
+			.availableProcessors();
+
+	/** Time an idle thread of the owned pool is kept, in seconds */
+	private static final long IDLE_TIME = 60;
+	/** Interval to check whether a queued member started, in nanoseconds */
+	private static final long QUEUE_POLL = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long NOT_STARTED = Long.MIN_VALUE;
+
+	private final List<OrderDetector> detectors = new ArrayList<OrderDetector>();
+	private final List<Double> weights = new ArrayList<Double>();
+	private final ExecutorService executor;
+	private final boolean ownedExecutor;
+	private long timeout = DEFAULT_TIMEOUT;
+
+	/**
+	 * Run the members on a pool of {@link #DEFAULT_THREADS} threads owned by
+	 * the ensemble.
+	 */
+	public EnsembleOrderDetector() {
+		this(DEFAULT_THREADS);
+	}
+
+	/**
+	 * Run the members on a pool owned by the ensemble. Its threads are
+	 * daemons and exit when idle, so the pool does not need to be
+	 * {@link #shutdown() shut down}.
+	 *
+	 * @param threads
+	 *            maximum number of members running at once
+	 */
+	public EnsembleOrderDetector(int threads) {
+		this(createExecutor(threads), true);
+	}
+
+	/**
+	 * @param executor
+	 *            shared executor to run the members on. It is not shut down
+	 *            by the ensemble.
+	 */
+	public EnsembleOrderDetector(ExecutorService executor) {
+		this(executor, false);
+	}
+
+	private EnsembleOrderDetector(ExecutorService executor,
+			boolean ownedExecutor) {
+		if (executor == null)
+			throw new IllegalArgumentException("Null executor");
+		this.executor = executor;
+		this.ownedExecutor = ownedExecutor;
+	}
+
+	private static ExecutorService createExecutor(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Invalid number of threads: "
+					+ threads);
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+				IDLE_TIME, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "order-ensemble-"
+								+ count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Shut down the pool owned by the ensemble, interrupting the members
+	 * still running. The ensemble can not be used afterwards. It has no
+	 * effect on an executor given to the constructor.
+	 */
+	public void shutdown() {
+		if (ownedExecutor)
+			executor.shutdownNow();
+	}
+
+	/**
+	 * Add a member with weight 1.
+	 *
+	 * @param detector
+	 */
+	public void addDetector(OrderDetector detector) {
+		addDetector(detector, 1);
+	}
+
+	/**
+	 * @param detector
+	 *            a member detector
+	 * @param weight
+	 *            weight of its vote, positive
+	 */
+	public void addDetector(OrderDetector detector, double weight) {
+		if (detector == null)
+			throw new IllegalArgumentException("Null detector");
+		if (!(weight > 0))
+			throw new IllegalArgumentException("Invalid weight: " + weight);
+		detectors.add(detector);
+		weights.add(weight);
+	}
+
+	@Override
+	public int calculateOrder(AFPChain afpChain, Atom[] ca)
+			throws RefinerFailedException {
+		return calculateOrder(new OrderDetectionContext(afpChain, ca));
+	}
+
+	@Override
+	public int calculateOrder(OrderDetectionContext context)
+			throws RefinerFailedException {
+		return detect(context).getOrder();
+	}
+
+	/**
+	 * Run all the members and vote.
+	 *
+	 * @param context
+	 *            the alignment and the atoms, shared by the members
+	 * @return the consensus order and the result of each member
+	 * @throws RefinerFailedException
+	 *             if no member returned an order in time
+	 */
+	public Result detect(final OrderDetectionContext context)
+			throws RefinerFailedException {
+		int n = detectors.size();
+		if (n == 0)
+			throw new IllegalStateException("No detectors in the ensemble");
+
+		final long start = System.nanoTime();
+		final AtomicLongArray starts = new AtomicLongArray(n);
+		for (int i = 0; i < n; i++)
+			starts.set(i, NOT_STARTED);
+		final AtomicLongArray times = new AtomicLongArray(n);
+		List<Future<Integer>> futures = new ArrayList<Future<Integer>>(n);
+		for (int i = 0; i < n; i++) {
+			final int member = i;
+			final OrderDetector detector = detectors.get(i);
+			futures.add(executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws RefinerFailedException {
+					long memberStart = System.nanoTime();
+					starts.set(member, memberStart);
+					try {
+						return context.calculateOrder(detector);
+					} finally {
+						times.set(member, System.nanoTime() - memberStart);
+					}
+				}
+			}));
+		}
+
+		int[] orders = new int[n];
+		boolean[] timedOut = new boolean[n];
+		long memberTimeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+		// a queued member waits at most for the deadlines of those before it
+		long queueTimeout = memberTimeout >= Long.MAX_VALUE / n ? Long.MAX_VALUE
+				: memberTimeout * n;
+		for (int i = 0; i < n; i++) {
+			Future<Integer> future = futures.get(i);
+			try {
+				orders[i] = waitFor(future, starts, i, start,
+						memberTimeout, queueTimeout);
+			} catch (TimeoutException e) {
+				future.cancel(true);
+				timedOut[i] = true;
+				if (starts.get(i) == NOT_STARTED)
+					logger.warn("{} was still queued after {} ms",
+							detectors.get(i), timeout * n);
+				else
+					logger.warn("{} missed the deadline of {} ms",
+							detectors.get(i), timeout);
+			} catch (InterruptedException e) {
+				for (Future<Integer> f : futures)
+					f.cancel(true);
+				Thread.currentThread().interrupt();
+				throw new RefinerFailedException(
+						"Interrupted while waiting for the detectors", e);
+			} catch (ExecutionException e) {
+				logger.warn("{} failed: {}", detectors.get(i), e.getCause()
+						.getMessage());
+			} catch (CancellationException e) {
+				logger.warn("{} was cancelled", detectors.get(i));
+			}
+		}
+
+		long[] memberTimes = new long[n];
+		double[] memberWeights = new double[n];
+		for (int i = 0; i < n; i++) {
+			// members still running past the deadline have no time
+			memberTimes[i] = timedOut[i] ? 0 : times.get(i);
+			memberWeights[i] = weights.get(i);
+		}
+		Result result = new Result(new ArrayList<OrderDetector>(detectors),
+				memberWeights, orders, memberTimes, timedOut,
+				System.nanoTime() - start);
+		logger.debug("Orders {} vote for {}", Arrays.toString(orders),
+				result.getOrder());
+		if (result.getOrder() < 1)
+			throw new RefinerFailedException(
+					"No detector of the ensemble returned an order");
+		return result;
+	}
+
+	/**
+	 * Wait for a member until its deadline, or, while it is queued, until all
+	 * the members before it could have missed theirs.
+	 *
+	 * @param start
+	 *            start of the ensemble
+	 * @throws TimeoutException
+	 *             if the member missed its deadline or was still queued
+	 */
+	private static int waitFor(Future<Integer> future, AtomicLongArray starts,
+			int member, long start, long memberTimeout, long queueTimeout)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		while (true) {
+			long memberStart = starts.get(member);
+			if (memberStart != NOT_STARTED)
+				return future.get(Math.max(0, memberTimeout
+						- (System.nanoTime() - memberStart)),
+						TimeUnit.NANOSECONDS);
+			long remaining = queueTimeout - (System.nanoTime() - start);
+			try {
+				return future.get(Math.max(0, Math.min(remaining, QUEUE_POLL)),
+						TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				// check again whether it started
+				if (remaining <= QUEUE_POLL
+						&& starts.get(member) == NOT_STARTED)
+					throw e;
+			}
+		}
+	}
+
+	/**
+	 * @return the deadline of each member, in milliseconds
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * @param timeout
+	 *            time each member has to return its order, in milliseconds
+	 *            from its own start
+	 */
+	public void setTimeout(long timeout) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("Negative timeout: " + timeout);
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @return the number of members
+	 */
+	public int size() {
+		return detectors.size();
+	}
+
+	public OrderDetector getDetector(int member) {
+		return detectors.get(member);
+	}
+
+	public double getWeight(int member) {
+		return weights.get(member);
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[detectors=" + detectors
+				+ ",weights=" + weights + ",timeout=" + timeout + "]";
+	}
+
+	/**
+	 * The consensus order and the result of each member, in the order they
+	 * were added to the ensemble.
+	 */
+	public static class Result {
+		private final List<OrderDetector> detectors;
+		private final double[] weights;
+		private final int[] orders;
+		private final long[] times;
+		private final boolean[] timedOut;
+		private final long time;
+		private final int order;
+
+		private Result(List<OrderDetector> detectors, double[] weights,
+				int[] orders, long[] times, boolean[] timedOut, long time) {
+			this.detectors = detectors;
+			this.weights = weights;
+			this.orders = orders;
+			this.times = times;
+			this.timedOut = timedOut;
+			this.time = time;
+
+			// weighted vote
+			double[] votes = new double[max(orders) + 1];
+			for (int i = 0; i < orders.length; i++) {
+				if (orders[i] > 0)
+					votes[orders[i]] += weights[i];
+			}
+			int best = 0;
+			for (int o = 1; o < votes.length; o++) {
+				if (votes[o] > votes[best])
+					best = o;
+			}
+			this.order = best;
+		}
+
+		private static int max(int[] values) {
+			int max = 0;
+			for (int v : values)
+				max = Math.max(max, v);
+			return max;
+		}
+
+		/**
+		 * @return the order with the highest total weight
+		 */
+		public int getOrder() {
+			return order;
+		}
+
+		/**
+		 * @return the total weight of the members that returned the order
+		 */
+		public double getVotes(int order) {
+			double votes = 0;
+			for (int i = 0; i < orders.length; i++) {
+				if (orders[i] == order)
+					votes += weights[i];
+			}
+			return votes;
+		}
+
+		/**
+		 * @return the order of a member, or 0 if it failed or missed the
+		 *         deadline
+		 */
+		public int getOrder(int member) {
+			return orders[member];
+		}
+
+		/**
+		 * @return the time a member ran, in nanoseconds, or 0 if it did not
+		 *         finish
+		 */
+		public long getTime(int member) {
+			return times[member];
+		}
+
+		/**
+		 * @return true if the member missed the deadline
+		 */
+		public boolean isTimedOut(int member) {
+			return timedOut[member];
+		}
+
+		/**
+		 * @return the time of the whole ensemble, in nanoseconds
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder str = new StringBuilder("Result[order=").append(order);
+			for (int i = 0; i < orders.length; i++) {
+				Class<?> cls = detectors.get(i).getClass();
+				str.append(",").append(cls.getSimpleName().isEmpty() ? cls.getName()
+						: cls.getSimpleName()).append("=");
+				if (timedOut[i])
+					str.append("timeout");
+				else if (orders[i] < 1)
+					str.append("failed");
+				else
+					str.append(orders[i]).append(String.format(" (%.1f ms)",
+							times[i] / 1e6));
+			}
+			return str.append("]").toString();
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package org.biojava.nbio.structure.align.symm.order;
+
+import static java.lang.Math.*;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.complex.Complex;
+import org.apache.commons.math3.transform.DftNormalization;
+import org.apache.commons.math3.transform.FastFourierTransformer;
+import org.apache.commons.math3.transform.TransformType;
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.align.model.AFPChain;
+import org.biojava.nbio.structure.align.symm.order.RotationOrderDetector.NeighborSearch;
+import org.biojava.nbio.structure.align.util.RotationAxis;
+import org.biojava.nbio.structure.symmetry.internal.RefinerFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Detects order from the Fourier transform of the superposition distance as
+ * the protein is rotated around the axis of symmetry.
+ * <p>
+ * The profile of a structure with Cn symmetry has period 2pi/n, so its
+ * Fourier series only has harmonics at multiples of n, with minima at the
+ * symmetric rotations. A single FFT of the profile sampled uniformly over the
+ * full rotation gives the power of all the harmonics, and the score of each
+ * order is the fraction of the power at its multiples. The order is the
+ * highest with a score above the threshold.
+ * <p>
+ * Rotations by theta and -theta give the same distance, so only the angles
+ * from 0 to pi are calculated.
+ */
+public class FourierOrderDetector implements ContextOrderDetector {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(FourierOrderDetector.class);
+
+	/** Number of samples over the full rotation (5.6 degrees) */
+	public static final int DEFAULT_SAMPLES = 64;
+	public static final double DEFAULT_THRESHOLD = 0.5;
+
+	private int maxOrder;
+	private int samples = DEFAULT_SAMPLES;
+	private double threshold = DEFAULT_THRESHOLD;
+	private NeighborSearch neighborSearch = RotationOrderDetector.DEFAULT_NEIGHBOR_SEARCH;
+
+	public FourierOrderDetector() {
+		this(8);
+	}
+
+	public FourierOrderDetector(int maxOrder) {
+		this(maxOrder, DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param maxOrder
+	 *            maximum order to consider
+	 * @param threshold
+	 *            minimum fraction of the power of the profile at the
+	 *            harmonics of an order
+	 */
+	public FourierOrderDetector(int maxOrder, double threshold) {
+		setMaxOrder(maxOrder);
+		setThreshold(threshold);
+	}
+
+	@Override
+	public int calculateOrder(AFPChain afpChain, Atom[] ca)
+			throws RefinerFailedException {
+		return calculateOrder(new OrderDetectionContext(afpChain, ca));
+	}
+
+	@Override
+	public int calculateOrder(OrderDetectionContext context)
+			throws RefinerFailedException {
+		try {
+			RotationAxis axis = context.getAxis();
+
+			// Use C1 order if the axis is undefined
+			if (!axis.isDefined() || axis.getRotationPos() == null) {
+				return 1;
+			}
+
+			return calculateOrder(getRotationProfile(context));
+
+		} catch (StructureException e) {
+			throw new RefinerFailedException(e);
+		}
+	}
+
+	/**
+	 * Calculate the order from a profile of {@link #getRotationProfile}.
+	 *
+	 * @param profile
+	 *            profile at the angles 2*pi*k/samples, for k from 0 to
+	 *            samples/2
+	 * @return the order
+	 */
+	public int calculateOrder(RotationProfile profile) {
+		double[] scores = getOrderScores(profile);
+		logger.debug("Order scores: {}", Arrays.toString(scores));
+
+		for (int order = maxOrder; order > 1; order--) {
+			if (scores[order - 1] >= threshold)
+				return order;
+		}
+		return 1;
+	}
+
+	/**
+	 * Calculate the superposition distances at the angles 2*pi*k/samples, for
+	 * k from 0 to samples/2.
+	 *
+	 * @param ca
+	 *            Atoms to rotate
+	 * @param axis
+	 *            Axis about which to rotate ca. It must have a position.
+	 * @return the rotation profile
+	 */
+	public RotationProfile getRotationProfile(Atom[] ca, RotationAxis axis) {
+		CylindricalSweep sweep = new CylindricalSweep(ca, axis, neighborSearch);
+		return RotationProfile.calculate(sweep, getAngles());
+	}
+
+	/**
+	 * Get the profile at the angles 2*pi*k/samples, for k from 0 to
+	 * samples/2, from the context, calculating it if no detector needed it
+	 * before.
+	 *
+	 * @param context
+	 *            the structure and its axis. The axis must have a position.
+	 * @return the rotation profile
+	 * @throws StructureException
+	 */
+	public RotationProfile getRotationProfile(OrderDetectionContext context)
+			throws StructureException {
+		if (context.getAxis().getRotationPos() == null)
+			throw new IllegalArgumentException(
+					"Rotation axis without a position");
+		return context.getRotationProfile(getAngles(), neighborSearch, true,
+				null, null);
+	}
+
+	private double[] getAngles() {
+		double[] angles = new double[samples / 2 + 1];
+		for (int k = 0; k < angles.length; k++)
+			angles[k] = 2 * PI * k / samples;
+		return angles;
+	}
+
+	/**
+	 * Power of each harmonic of the profile. Only the harmonics with minima at
+	 * the symmetric rotations (negative cosine coefficients) count.
+	 *
+	 * @param profile
+	 *            profile at the angles 2*pi*k/samples, for k from 0 to
+	 *            samples/2
+	 * @return an array of length samples/2+1 with the power of each harmonic.
+	 *         The constant term (element 0) is always 0.
+	 */
+	public double[] getHarmonicPowers(RotationProfile profile) {
+		double[] distances = profile.getDistances();
+		int n = 2 * (distances.length - 1);
+		if (n < 2 || Integer.bitCount(n) != 1)
+			throw new IllegalArgumentException("Expected a profile of 2^k+1 angles from 0 to pi, got "
+					+ distances.length);
+
+		// The profile is symmetric about theta=0
+		double[] full = new double[n];
+		for (int k = 0; k < distances.length; k++) {
+			full[k] = distances[k];
+			full[(n - k) % n] = distances[k];
+		}
+
+		FastFourierTransformer fft = new FastFourierTransformer(
+				DftNormalization.STANDARD);
+		Complex[] coefs = fft.transform(full, TransformType.FORWARD);
+
+		double[] powers = new double[n / 2 + 1];
+		for (int k = 1; k < powers.length; k++) {
+			double dip = -coefs[k].getReal();
+			if (dip > 0)
+				powers[k] = dip * dip;
+		}
+		return powers;
+	}
+
+	/**
+	 * Score each order by the fraction of the power of the profile at the
+	 * multiples of the order.
+	 *
+	 * @param profile
+	 *            profile at the angles 2*pi*k/samples, for k from 0 to
+	 *            samples/2
+	 * @return an array of length maxOrder with the score of each order, from
+	 *         0 to 1. Orders without harmonics in the profile score 0.
+	 */
+	public double[] getOrderScores(RotationProfile profile) {
+		double[] powers = getHarmonicPowers(profile);
+		double total = 0;
+		for (int k = 1; k < powers.length; k++)
+			total += powers[k];
+
+		double[] scores = new double[maxOrder];
+		if (total <= 0)
+			return scores;
+		for (int order = 1; order <= maxOrder; order++) {
+			double power = 0;
+			for (int k = order; k < powers.length; k += order)
+				power += powers[k];
+			scores[order - 1] = power / total;
+		}
+		return scores;
+	}
+
+	private static void checkSamples(int samples, int maxOrder) {
+		if (samples < 4 || Integer.bitCount(samples) != 1)
+			throw new IllegalArgumentException(
+					"The number of samples must be a power of two: " + samples);
+		if (samples < 4 * maxOrder)
+			throw new IllegalArgumentException("At least " + 4 * maxOrder
+					+ " samples are needed for order " + maxOrder + ": "
+					+ samples);
+	}
+
+	public int getMaxOrder() {
+		return maxOrder;
+	}
+
+	/**
+	 * @param maxOrder
+	 *            maximum order to consider. The number of samples is doubled
+	 *            until it is at least 4 times the maximum order.
+	 */
+	public void setMaxOrder(int maxOrder) {
+		if (maxOrder < 1)
+			throw new IllegalArgumentException("Invalid maximum order: "
+					+ maxOrder);
+		// enough samples for the highest order
+		while (samples < 4 * maxOrder)
+			samples *= 2;
+		this.maxOrder = maxOrder;
+	}
+
+	public int getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @param samples
+	 *            number of samples over the full rotation. Must be a power of
+	 *            two, and at least 4 times the maximum order.
+	 */
+	public void setSamples(int samples) {
+		checkSamples(samples, maxOrder);
+		this.samples = samples;
+	}
+
+	public double getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @param threshold
+	 *            minimum fraction of the power of the profile at the
+	 *            harmonics of an order, between 0 and 1
+	 */
+	public void setThreshold(double threshold) {
+		if (threshold <= 0 || threshold > 1)
+			throw new IllegalArgumentException(
+					"The threshold must be in (0,1]: " + threshold);
+		this.threshold = threshold;
+	}
+
+	public NeighborSearch getNeighborSearch() {
+		return neighborSearch;
+	}
+
+	public void setNeighborSearch(NeighborSearch neighborSearch) {
+		this.neighborSearch = neighborSearch;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[maxOrder=" + maxOrder
+				+ ",samples=" + samples + ",threshold=" + threshold + "]";
+	}
+}
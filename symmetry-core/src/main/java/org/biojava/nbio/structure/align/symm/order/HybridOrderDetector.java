@@ -3,15 +3,10 @@ package org.biojava.nbio.structure.align.symm.order;
 import static java.lang.Math.*;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
-import org.biojava.nbio.structure.Atom;
 import org.biojava.nbio.structure.StructureException;
-import org.biojava.nbio.structure.align.model.AFPChain;
-import org.biojava.nbio.structure.align.util.RotationAxis;
 import org.biojava.nbio.structure.symmetry.internal.OrderDetector;
 import org.biojava.nbio.structure.symmetry.internal.RefinerFailedException;
 import org.slf4j.Logger;
@@ -51,16 +46,14 @@ public class HybridOrderDetector extends RotationOrderDetector implements OrderD
 	}
 	
 	@Override
-	public int calculateOrder(AFPChain afpChain, Atom[] ca)
+	public int calculateOrder(OrderDetectionContext context)
 			throws RefinerFailedException {
 
 		try {
-			RotationAxis axis = new RotationAxis(afpChain);
-			double[] angles = getAngles();
-			double[] distances = getSuperpositionDistances(ca,axis, angles);
-			ScoreCache scores = new ScoreCache(angles,distances);
+			// Score all the orders at once on the same profile
+			double[] scores = getScores(getRotationProfile(context));
 
-			List<Integer> compatible = compatibleOrders(afpChain, ca);
+			List<Integer> compatible = compatibleOrders(context.getAngle());
 
 			logger.debug("Compatible orders: {}",compatible);
 			
@@ -71,10 +64,10 @@ public class HybridOrderDetector extends RotationOrderDetector implements OrderD
 			// Calculate maximum score for compatible orders
 			Iterator<Integer> compatibleIt = compatible.iterator();
 			int firstOrder = compatibleIt.next();
-			double bestScore = scores.get(firstOrder);
+			double bestScore = scores[firstOrder];
 			while(compatibleIt.hasNext()) {
 				int order = compatibleIt.next();
-				double score = scores.get(order);
+				double score = scores[order];
 				if(score > bestScore)
 					bestScore = score;
 			}
@@ -94,7 +87,7 @@ public class HybridOrderDetector extends RotationOrderDetector implements OrderD
 			// Print all scores for debugging
 			StringBuilder allScores = new StringBuilder();
 			for(int order=1;order<=getMaxOrder();order++) {
-				allScores.append(String.format("%.3f\t", scores.get(order)));
+				allScores.append(String.format("%.3f\t", scores[order]));
 			}
 			logger.debug("Scores: {}",allScores);
 
@@ -104,6 +97,23 @@ public class HybridOrderDetector extends RotationOrderDetector implements OrderD
 			throw new RefinerFailedException(e);
 		}
 	}
+
+	/**
+	 * Score each order by the absolute amplitude of a single-order fit to
+	 * the profile.
+	 * @param profile rotation profile of the structure
+	 * @return an array of length maxOrder+1 with the score of each order (element 0 is unused)
+	 * @throws StructureException
+	 */
+	private double[] getScores(RotationProfile profile) throws StructureException {
+		double[] amps = trySingleOrdersByAmp(profile);
+		double[] scores = new double[amps.length+1];
+		for(int order=1;order<scores.length;order++) {
+			scores[order] = Math.abs(amps[order-1]);
+		}
+		return scores;
+	}
+
 	/**error
 	 * Returns the highest order such that the score is greater than 40% of the
 	 * score for startOrder.
@@ -113,14 +123,11 @@ public class HybridOrderDetector extends RotationOrderDetector implements OrderD
 	 * @param startOrder Initial order
 	 * @param minFactor IndmaxOrderex of the minimum element of primes to search
 	 * @param maxFactor Index of the maximum element of primes to search
-	 * @param scoreCache Cache of scores for each order. Should contain at least startOrder
-	 * @param angles
-	 * @param distances
+	 * @param scores Score of each order, from 1 to maxOrder
 	 * @return
-	 * @throws StructureException
 	 */
 	private int optimizeOrder(int startOrder, double startScore,
-			int minFactor, int maxFactor, final ScoreCache scoreCache) throws StructureException
+			int minFactor, int maxFactor, final double[] scores)
 	{
 		logger.trace("Optimizing orders from {} with prime factors {}-{}",startOrder,primes[minFactor],primes[maxFactor]);
 		final double threshold = startScore * scoreThreshold;
@@ -136,7 +143,7 @@ public class HybridOrderDetector extends RotationOrderDetector implements OrderD
 		}
 		
 		// Compute score for this order
-		double score = scoreCache.get(startOrder);
+		double score = scores[startOrder];
 		logger.trace("Score({}) = {} {}",startOrder,score, score < threshold ? "< "+ threshold : "OK");
 		if(score < threshold ) {
 			// Not optimal
@@ -147,7 +154,7 @@ public class HybridOrderDetector extends RotationOrderDetector implements OrderD
 		int bestOrder = startOrder;
 		for(int p=minFactor;p<=maxFactor;p++) {
 			int sub = optimizeOrder(startOrder*primes[p], startScore,
-					p, maxFactor, scoreCache);
+					p, maxFactor, scores);
 			if( sub > bestOrder) {
 				bestOrder = sub;
 			}
@@ -155,42 +162,9 @@ public class HybridOrderDetector extends RotationOrderDetector implements OrderD
 		return bestOrder;
 	}
 
-	/**
-	 * Small helper class to calculate scores as needed
-	 * @author Spencer Bliven
-	 *
-	 */
-	private class ScoreCache{
-		private Map<Integer,Double> scoreCache;
-		private double[] angles;
-		private double[] distances;
-		public ScoreCache(double[] angles, double[] distances) {
-			scoreCache = new HashMap<Integer,Double>();
-			this.angles = angles;
-			this.distances = distances;
-		}
-		
-		public Double get(Integer startOrder) throws StructureException {
-			if( scoreCache.containsKey(startOrder)) {
-				return scoreCache.get(startOrder);
-			} else {
-				double score = getWeightsForFit(angles,distances, new int[] {0,startOrder})[ 1 ];
-				scoreCache.put(startOrder, Math.abs(score));
-				return  Math.abs(score);
-			}
-		}
-	}
-
-	private List<Integer> compatibleOrders(AFPChain afpChain, Atom[] ca) throws RefinerFailedException {
+	private List<Integer> compatibleOrders(double theta) {
 		// order -> probability
 		List<Integer> compatible = new ArrayList<Integer>();
-		RotationAxis axis;
-		try {
-			axis = new RotationAxis(afpChain);
-		} catch (StructureException e) {
-			throw new RefinerFailedException(e);
-		}
-		double theta = axis.getAngle();
 
 		for (int order = 1; order <= getMaxOrder(); order++) {
 			// Triangle wave starting at 0 with period 2pi/order
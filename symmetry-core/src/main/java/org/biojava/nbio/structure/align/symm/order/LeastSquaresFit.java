@@ -0,0 +1,95 @@
+package org.biojava.nbio.structure.align.symm.order;
+
+import org.biojava.nbio.structure.jama.Matrix;
+
+/**
+ * Linear least-squares fit with a fixed matrix of features M (one row per
+ * sample, one column per term). The solver (M'M)^-1 M' does not depend on the
+ * fitted values, so it is computed once and every fit is a matrix-vector
+ * product.
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+class LeastSquaresFit {
+
+	/** samples x terms */
+	private final double[][] features;
+	/** terms x samples */
+	private final double[][] solver;
+
+	/**
+	 * @param features
+	 *            matrix with the value of each term (columns) for each sample
+	 *            (rows)
+	 * @throws RuntimeException
+	 *             if the terms are linearly dependent
+	 */
+	public LeastSquaresFit(Matrix features) {
+		Matrix transpose = features.transpose();
+		this.features = features.getArrayCopy();
+		this.solver = transpose.times(features).solve(transpose).getArray();
+	}
+
+	/**
+	 * @return the number of samples
+	 */
+	public int getSamples() {
+		return features.length;
+	}
+
+	/**
+	 * @return the number of terms
+	 */
+	public int getTerms() {
+		return solver.length;
+	}
+
+	/**
+	 * @return the value of a term for a sample
+	 */
+	double getFeature(int sample, int term) {
+		return features[sample][term];
+	}
+
+	/**
+	 * @return the factor of the value of a sample in the weight of a term
+	 */
+	double getSolver(int term, int sample) {
+		return solver[term][sample];
+	}
+
+	/**
+	 * @param values
+	 *            value of each sample
+	 * @return the weight of each term that minimizes the squared error
+	 */
+	public double[] getWeights(double[] values) {
+		double[] weights = new double[solver.length];
+		for (int k = 0; k < solver.length; k++) {
+			double[] row = solver[k];
+			double w = 0;
+			for (int i = 0; i < values.length; i++)
+				w += row[i] * values[i];
+			weights[k] = w;
+		}
+		return weights;
+	}
+
+	/**
+	 * @param values
+	 *            value of each sample
+	 * @return the root mean squared error of the fit
+	 */
+	public double getRootMeanSquaredError(double[] values) {
+		double[] weights = getWeights(values);
+		double sse = 0;
+		for (int i = 0; i < values.length; i++) {
+			double[] row = features[i];
+			double error = -values[i];
+			for (int k = 0; k < weights.length; k++)
+				error += row[k] * weights[k];
+			sse += error * error;
+		}
+		return Math.sqrt(sse / values.length);
+	}
+}
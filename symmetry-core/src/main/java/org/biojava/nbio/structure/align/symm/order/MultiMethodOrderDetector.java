@@ -1,9 +1,7 @@
 package org.biojava.nbio.structure.align.symm.order;
 
 import org.biojava.nbio.structure.Atom;
-import org.biojava.nbio.structure.Calc;
 import org.biojava.nbio.structure.align.model.AFPChain;
-import org.biojava.nbio.structure.align.util.RotationAxis;
 import org.biojava.nbio.structure.symmetry.internal.OrderDetector;
 import org.biojava.nbio.structure.symmetry.internal.RefinerFailedException;
 import org.biojava.nbio.structure.symmetry.internal.SequenceFunctionOrderDetector;
@@ -12,7 +10,7 @@ import org.biojava.nbio.structure.symmetry.internal.SequenceFunctionOrderDetecto
  * A more intelligent order-detection that uses angle, screw vector magnitude, and Spencer's method.
  * @author dmyersturnbull
  */
-public class MultiMethodOrderDetector implements OrderDetector {
+public class MultiMethodOrderDetector implements ContextOrderDetector {
 
 	private final double maxScrew;
 	private final double angleError;
@@ -25,13 +23,18 @@ public class MultiMethodOrderDetector implements OrderDetector {
 
 	@Override
 	public int calculateOrder(AFPChain afpChain, Atom[] ca) throws RefinerFailedException {
+		return calculateOrder(new OrderDetectionContext(afpChain, ca));
+	}
+
+	@Override
+	public int calculateOrder(OrderDetectionContext context) throws RefinerFailedException {
 		try {
-			RotationAxis axis = new RotationAxis(afpChain);
+			// the methods share the axis of the context
 			OrderDetector method1 = new SequenceFunctionOrderDetector();
-			int orderMethod1 = method1.calculateOrder(afpChain, ca);
+			int orderMethod1 = context.calculateOrder(method1);
 			OrderDetector method2 = new AngleOrderDetectorPlus(angleError);
-			int orderMethod2 = method2.calculateOrder(afpChain, ca);
-			double screw = (float) (Calc.amount(axis.getScrewTranslation()) / Calc.amount(axis.getRotationAxis()));
+			int orderMethod2 = context.calculateOrder(method2);
+			double screw = (float) context.getScrewTranslation();
 			if (screw > maxScrew) return 1;
 			if (orderMethod2 != 1) return orderMethod2;
 			return orderMethod1;
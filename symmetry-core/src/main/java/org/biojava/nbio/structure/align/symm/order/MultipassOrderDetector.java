@@ -1,66 +1,426 @@
 package org.biojava.nbio.structure.align.symm.order;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Point3d;
+
 import org.biojava.nbio.structure.Atom;
 import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.align.ce.CeMain;
+import org.biojava.nbio.structure.align.ce.CeParameters;
 import org.biojava.nbio.structure.align.model.AFPChain;
+import org.biojava.nbio.structure.align.symm.CESymmCalculator;
+import org.biojava.nbio.structure.align.symm.TraceStatistics;
+import org.biojava.nbio.structure.geometry.SuperPositions;
 import org.biojava.nbio.structure.symmetry.internal.CESymmParameters;
-import org.biojava.nbio.structure.symmetry.internal.CESymmParameters.SymmetryType;
-import org.biojava.nbio.structure.symmetry.internal.CeSymm;
-import org.biojava.nbio.structure.symmetry.internal.OrderDetector;
 import org.biojava.nbio.structure.symmetry.internal.RefinerFailedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
- * NOT WORKING!!!
+ * Detects the order from the number of distinct alignments of the structure
+ * to itself.
+ * <p>
+ * A structure with Cn symmetry aligns to itself with n-1 rotations, by
+ * 2*pi*k/n. The structure is aligned to its duplicated atoms as in CE-Symm,
+ * with the identity alignment masked. Each pass traces the best alignment in
+ * the similarity matrix, then masks its AFPs for the next pass with
+ * {@link CESymmCalculator#maskAfp(int, int)}, which also masks the transposed
+ * AFPs: those of the inverse alignment, by 2*pi*(n-k)/n. A pass thus removes
+ * two alignments, or one if the alignment is its own inverse, a rotation by
+ * pi. The distance and similarity matrices are calculated once, in the first
+ * pass, and stored packed. Later passes only re-run the trace. The passes
+ * stop at the first alignment with a TM-score below the threshold, and the
+ * order is the number of significant alignments plus one.
+ * <p>
+ * The TM-score of a pass is calculated on the trace, before the optimization
+ * of CE, so it is lower than the TM-score of a CE-Symm alignment. For the same
+ * reason, a given CE-Symm alignment is ignored and the structure is aligned
+ * from scratch.
  */
-@Deprecated
-public class MultipassOrderDetector implements OrderDetector {
+public class MultipassOrderDetector implements ContextOrderDetector {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(MultipassOrderDetector.class);
 
 	private int maxOrder = 8;
+	private int maxPasses;
+	private double threshold = CESymmParameters.DEFAULT_SYMMETRY_THRESHOLD;
+	private CeParameters params = new CeParameters();
 
 	public MultipassOrderDetector() {
 		this(8);
 	}
+
 	/**
+	 * @param maxOrder
+	 *            maximum order to consider. Up to maxOrder-1 passes are run,
+	 *            fewer if they find an alignment and its inverse.
 	 */
 	public MultipassOrderDetector(int maxOrder) {
+		if (maxOrder < 1)
+			throw new IllegalArgumentException("Invalid maximum order: "
+					+ maxOrder);
 		this.maxOrder = maxOrder;
+		this.maxPasses = maxOrder - 1;
 	}
 
+	/**
+	 * Align the structure to itself from scratch, as {@link #detect(Atom[])}.
+	 * The given alignment is ignored.
+	 *
+	 * @param afpChain
+	 *            not used
+	 * @param ca
+	 *            atoms of the structure
+	 */
 	@Override
 	public int calculateOrder(AFPChain afpChain, Atom[] ca)
 			throws RefinerFailedException {
-		CESymmParameters params = new CESymmParameters();
-		params.setMaxSymmOrder(maxOrder);
-		//params.setRefineMethod(RefineMethod.MULTIPLE);
-		params.setSymmType(SymmetryType.CLOSED);
-		params.setOptimization(false);
+		return calculateOrder(new OrderDetectionContext(afpChain, ca));
+	}
+
+	/**
+	 * Align the atoms of the context to themselves from scratch, as
+	 * {@link #detect(Atom[])}. The alignment, axis and profiles of the
+	 * context are not used.
+	 * <p>
+	 * The alignment is not used as the first pass: it was optimized by CE,
+	 * so its TM-score is higher than that of a trace and is not comparable
+	 * with the threshold of the other passes. The passes also need the
+	 * similarity matrix, which the alignment does not carry, so using it
+	 * would not save the calculation of the matrix.
+	 */
+	@Override
+	public int calculateOrder(OrderDetectionContext context)
+			throws RefinerFailedException {
+		return detect(context.getAtoms()).getOrder();
+	}
+
+	/**
+	 * Align the structure to itself until no significant alignment is left.
+	 *
+	 * @param ca
+	 *            atoms of the structure
+	 * @return the order and the cost of each pass
+	 * @throws RefinerFailedException
+	 */
+	public Result detect(Atom[] ca) throws RefinerFailedException {
+		int n = ca.length;
+		int winSize = params.getWinSize();
+		if (n < 2 * winSize || maxPasses < 1) {
+			// too short to align
+			return new Result(1, 0, Collections.<Pass> emptyList());
+		}
+
+		// the atoms are only read, so the copy can share them
+		Atom[] ca2 = new Atom[2 * n];
+		for (int i = 0; i < ca2.length; i++)
+			ca2[i] = ca[i % n];
+
+		long start = System.nanoTime();
+		CESymmCalculator calculator = new CESymmCalculator(params);
+		calculator.setPackedStorage(true);
+		AFPChain afpChain = new AFPChain(CeMain.algorithmName);
 		try {
-			CeSymm.analyze(ca, params);
+			calculator.extractFragments(afpChain, ca, ca2);
 		} catch (StructureException e) {
 			throw new RefinerFailedException(e);
 		}
-		List<AFPChain> alignments = new ArrayList<AFPChain>();
-		// For high orders, take it from the number of alignments with unrefined TM above threshold
-		if(alignments.size() > 1) {
-			return alignments.size() + 1;
+		// the identity alignment
+		for (int i = 0; i < n; i++)
+			mask(calculator, i, i, n, winSize);
+		long matrixTime = System.nanoTime() - start;
+
+		Point3d[] points = new Point3d[n];
+		for (int i = 0; i < n; i++)
+			points[i] = new Point3d(ca[i].getX(), ca[i].getY(), ca[i].getZ());
+
+		List<Pass> passes = new ArrayList<Pass>(maxPasses);
+		int significant = 0;
+		while (passes.size() < maxPasses && significant + 1 < maxOrder) {
+			// e.g. by an EnsembleOrderDetector after the deadline
+			if (Thread.currentThread().isInterrupted())
+				throw new RefinerFailedException("Interrupted after "
+						+ passes.size() + " passes");
+			long passStart = System.nanoTime();
+			TraceStatistics statistics = new TraceStatistics();
+			calculator.setTraceStatistics(statistics);
+			calculator.traceFragmentMatrix(afpChain, ca, ca2);
+
+			int nAfps = calculator.getnBestTrace();
+			int[] trace1 = calculator.getBestTrace1();
+			int[] trace2 = calculator.getBestTrace2();
+			int length = nAfps * winSize;
+			int[] aligned1 = new int[length];
+			int[] aligned2 = new int[length];
+			for (int k = 0; k < nAfps; k++) {
+				for (int w = 0; w < winSize; w++) {
+					aligned1[k * winSize + w] = trace1[k] + w;
+					aligned2[k * winSize + w] = (trace2[k] + w) % n;
+				}
+			}
+			Matrix4d transform = superpose(points, aligned1, aligned2);
+			double tmScore = getTMScore(points, aligned1, aligned2, transform);
+			int alignments = transform != null
+					&& isSelfInverse(transform, maxOrder) ? 1 : 2;
+
+			// later passes must find other alignments, and not the inverse
+			for (int i = 0; i < length; i++)
+				mask(calculator, aligned1[i], aligned2[i], n, winSize);
+
+			Pass pass = new Pass(length, tmScore, alignments,
+					statistics.getTraces(), System.nanoTime() - passStart);
+			passes.add(pass);
+			logger.debug("Pass {}: {}", passes.size(), pass);
+			if (tmScore < threshold)
+				break;
+			significant += alignments;
+		}
+
+		int order = Math.min(significant + 1, maxOrder);
+		return new Result(order, matrixTime, passes);
+	}
+
+	/**
+	 * Mask the AFPs that overlap an aligned pair of residues, in every period
+	 * of the duplicated atoms. The calculator also masks the transposed AFPs,
+	 * which overlap the pair (res2, res1) of the inverse alignment.
+	 */
+	private static void mask(CESymmCalculator calculator, int res1, int res2,
+			int n, int winSize) {
+		int from1 = Math.max(0, res1 - winSize + 1);
+		for (int i = from1; i <= res1 && i <= n - winSize; i++) {
+			for (int w = 0; w < winSize; w++)
+				calculator.maskAfp(i, (res2 - w + n) % n);
+		}
+	}
+
+	/**
+	 * Superpose the second residues of an alignment of the structure to
+	 * itself on the first ones.
+	 *
+	 * @return the transformation, or null for an empty alignment
+	 */
+	private static Matrix4d superpose(Point3d[] points, int[] aligned1,
+			int[] aligned2) {
+		int length = aligned1.length;
+		if (length < 3)
+			return null;
+		Point3d[] fixed = new Point3d[length];
+		Point3d[] moved = new Point3d[length];
+		for (int i = 0; i < length; i++) {
+			fixed[i] = points[aligned1[i]];
+			moved[i] = new Point3d(points[aligned2[i]]);
 		}
-		// For C1/C2, look at refined TM
-		if(alignments.get(0).getTMScore() >= 
-				CESymmParameters.DEFAULT_SYMMETRY_THRESHOLD){
-			return 2;
-		} else {
-			return 1;
+		return SuperPositions.superpose(fixed, moved);
+	}
+
+	/**
+	 * TM-score of an alignment of the structure to itself, normalized by the
+	 * length of the structure.
+	 *
+	 * @return the TM-score, or 0 for an empty alignment
+	 */
+	private static double getTMScore(Point3d[] points, int[] aligned1,
+			int[] aligned2, Matrix4d transform) {
+		if (transform == null)
+			return 0;
+		int n = points.length;
+		double d0 = Math.max(0.5, 1.24 * Math.cbrt(n - 15) - 1.8);
+		double sum = 0;
+		Point3d moved = new Point3d();
+		for (int i = 0; i < aligned1.length; i++) {
+			moved.set(points[aligned2[i]]);
+			transform.transform(moved);
+			double d = points[aligned1[i]].distance(moved) / d0;
+			sum += 1 / (1 + d * d);
 		}
+		return sum / n;
+	}
+
+	/**
+	 * An alignment is its own inverse if it rotates by pi. The tolerance is
+	 * half the gap to the closest rotation of an order up to maxOrder that is
+	 * not, pi-pi/n for an odd n.
+	 */
+	private static boolean isSelfInverse(Matrix4d transform, int maxOrder) {
+		double cos = (transform.m00 + transform.m11 + transform.m22 - 1) / 2;
+		double angle = Math.acos(Math.max(-1, Math.min(1, cos)));
+		return angle > Math.PI - Math.PI / (2 * maxOrder);
+	}
+
+	public int getMaxOrder() {
+		return maxOrder;
+	}
+
+	public int getMaxPasses() {
+		return maxPasses;
+	}
+
+	/**
+	 * @param maxPasses
+	 *            maximum number of alignments to trace (default maxOrder-1)
+	 */
+	public void setMaxPasses(int maxPasses) {
+		if (maxPasses < 1)
+			throw new IllegalArgumentException("Invalid number of passes: "
+					+ maxPasses);
+		this.maxPasses = maxPasses;
+	}
+
+	public double getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @param threshold
+	 *            minimum TM-score of the trace of a significant alignment
+	 *            (default {@link CESymmParameters#DEFAULT_SYMMETRY_THRESHOLD})
+	 */
+	public void setThreshold(double threshold) {
+		if (threshold < 0 || threshold > 1)
+			throw new IllegalArgumentException(
+					"The threshold must be in [0,1]: " + threshold);
+		this.threshold = threshold;
+	}
+
+	public CeParameters getParameters() {
+		return params;
+	}
+
+	/**
+	 * @param params
+	 *            parameters of the trace, e.g. the fragment length
+	 */
+	public void setParameters(CeParameters params) {
+		if (params == null)
+			throw new IllegalArgumentException("Null parameters");
+		this.params = params;
 	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
 	@Override
 	public String toString() {
-		return "MultipassOrderDetector [maxOrder=" + maxOrder + "]";
+		return "MultipassOrderDetector [maxOrder=" + maxOrder
+				+ ", maxPasses=" + maxPasses + ", threshold=" + threshold
+				+ "]";
+	}
+
+	/**
+	 * The order and the cost of the passes.
+	 */
+	public static class Result {
+		private final int order;
+		private final long matrixTime;
+		private final List<Pass> passes;
+
+		private Result(int order, long matrixTime, List<Pass> passes) {
+			this.order = order;
+			this.matrixTime = matrixTime;
+			this.passes = Collections.unmodifiableList(passes);
+		}
+
+		public int getOrder() {
+			return order;
+		}
+
+		/**
+		 * @return the time to calculate the distance and similarity
+		 *         matrices, shared by all the passes, in nanoseconds
+		 */
+		public long getMatrixTime() {
+			return matrixTime;
+		}
+
+		/**
+		 * @return the passes, including the last one, which was not
+		 *         significant unless the maximum number of passes was reached
+		 */
+		public List<Pass> getPasses() {
+			return passes;
+		}
+
+		/**
+		 * @return the time of the matrices and all the passes, in nanoseconds
+		 */
+		public long getTime() {
+			long time = matrixTime;
+			for (Pass pass : passes)
+				time += pass.getTime();
+			return time;
+		}
+
+		@Override
+		public String toString() {
+			return "Result[order=" + order + ", matrixTime="
+					+ String.format("%.1f ms", matrixTime / 1e6) + ", passes="
+					+ passes + "]";
+		}
 	}
 
+	/**
+	 * The alignment traced by a pass, and its cost.
+	 */
+	public static class Pass {
+		private final int length;
+		private final double tmScore;
+		private final int alignments;
+		private final long traces;
+		private final long time;
+
+		private Pass(int length, double tmScore, int alignments, long traces,
+				long time) {
+			this.length = length;
+			this.tmScore = tmScore;
+			this.alignments = alignments;
+			this.traces = traces;
+			this.time = time;
+		}
+
+		/**
+		 * @return the number of aligned residues
+		 */
+		public int getLength() {
+			return length;
+		}
+
+		public double getTMScore() {
+			return tmScore;
+		}
+
+		/**
+		 * @return the number of alignments the pass masked: 2 for the
+		 *         alignment and its inverse, or 1 if it is its own inverse
+		 */
+		public int getAlignments() {
+			return alignments;
+		}
+
+		/**
+		 * @return the number of traces explored
+		 */
+		public long getTraces() {
+			return traces;
+		}
+
+		/**
+		 * @return the time of the trace and its scoring, in nanoseconds
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"Pass[length=%d, TM=%.3f, alignments=%d, traces=%d, %.1f ms]",
+					length, tmScore, alignments, traces, time / 1e6);
+		}
+	}
 }
@@ -0,0 +1,252 @@
+package org.biojava.nbio.structure.align.symm.order;
+
+import org.biojava.nbio.structure.Atom;
+
+/**
+ * Uniform grid of cubic cells over the coordinates of a set of atoms, used to
+ * find the nearest atom to a point without testing all the atoms.
+ * <p>
+ * The coordinates are copied to primitive arrays, sorted by cell. A query
+ * visits the cells in shells of increasing distance around the cell of the
+ * point and stops as soon as no unvisited cell can be closer than the nearest
+ * atom found so far, so the result is exact.
+ */
+class NeighborGrid {
+
+	/**
+	 * Minimum cell edge, in Angstroms; about one C-alpha per cell in a protein
+	 * core. Cells are larger in sparse structures, so that there is about one
+	 * atom per cell of the bounding box.
+	 */
+	public static final double MIN_CELL_SIZE = 4.0;
+
+	/**
+	 * Maximum number of cells per atom. Cells are enlarged if the bounding
+	 * box would need more, e.g. for a long chain.
+	 */
+	public static final int MAX_CELLS_PER_ATOM = 4;
+
+	// coordinates in the order of the atoms
+	private final double[] x;
+	private final double[] y;
+	private final double[] z;
+
+	// coordinates sorted by cell. The atoms of cell c are at
+	// cellStart[c] <= i < cellStart[c+1]
+	private final double[] cellX;
+	private final double[] cellY;
+	private final double[] cellZ;
+	private final int[] cellStart;
+
+	private final double cellSize;
+	private final double minX, minY, minZ;
+	private final int dimX, dimY, dimZ;
+
+	/**
+	 * @param atoms
+	 *            atoms to index. Their coordinates are copied.
+	 */
+	public NeighborGrid(Atom[] atoms) {
+		this(getCoordinates(atoms, 0), getCoordinates(atoms, 1),
+				getCoordinates(atoms, 2));
+	}
+
+	/**
+	 * @param x
+	 *            first coordinate of each point to index
+	 * @param y
+	 *            second coordinate of each point
+	 * @param z
+	 *            third coordinate of each point. The arrays are not copied
+	 *            and should not be modified.
+	 */
+	public NeighborGrid(double[] x, double[] y, double[] z) {
+		int n = x.length;
+		if (y.length != n || z.length != n)
+			throw new IllegalArgumentException("Got " + n + " x, " + y.length
+					+ " y and " + z.length + " z coordinates");
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY, maxZ = Double.NEGATIVE_INFINITY;
+		double lowX = Double.POSITIVE_INFINITY, lowY = Double.POSITIVE_INFINITY, lowZ = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			lowX = Math.min(lowX, x[i]);
+			lowY = Math.min(lowY, y[i]);
+			lowZ = Math.min(lowZ, z[i]);
+			maxX = Math.max(maxX, x[i]);
+			maxY = Math.max(maxY, y[i]);
+			maxZ = Math.max(maxZ, z[i]);
+		}
+		if (n == 0) {
+			lowX = lowY = lowZ = maxX = maxY = maxZ = 0;
+		}
+		minX = lowX;
+		minY = lowY;
+		minZ = lowZ;
+
+		// Sparse structures would need too many empty cells. A flat or
+		// linear box has no volume, so each side counts as at least one cell
+		double extentX = maxX - minX, extentY = maxY - minY, extentZ = maxZ - minZ;
+		double volume = Math.max(extentX, MIN_CELL_SIZE)
+				* Math.max(extentY, MIN_CELL_SIZE)
+				* Math.max(extentZ, MIN_CELL_SIZE);
+		double size = Math.max(MIN_CELL_SIZE, Math.cbrt(volume / Math.max(n, 1)));
+		// An elongated box can still have many more cells than atoms
+		long maxCells = MAX_CELLS_PER_ATOM * (long) Math.max(n, 1);
+		while ((double) cells(extentX, size) * cells(extentY, size)
+				* cells(extentZ, size) > maxCells) {
+			size *= 1.25;
+		}
+		this.cellSize = size;
+		dimX = (int) cells(extentX, size);
+		dimY = (int) cells(extentY, size);
+		dimZ = (int) cells(extentZ, size);
+
+		// Counting sort of the atoms by cell
+		int[] cellOf = new int[n];
+		cellStart = new int[dimX * dimY * dimZ + 1];
+		for (int i = 0; i < n; i++) {
+			cellOf[i] = cellIndex(cell(x[i], minX, dimX), cell(y[i], minY, dimY),
+					cell(z[i], minZ, dimZ));
+			cellStart[cellOf[i] + 1]++;
+		}
+		for (int c = 0; c < cellStart.length - 1; c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+		int[] next = new int[cellStart.length - 1];
+		System.arraycopy(cellStart, 0, next, 0, next.length);
+		cellX = new double[n];
+		cellY = new double[n];
+		cellZ = new double[n];
+		for (int i = 0; i < n; i++) {
+			int pos = next[cellOf[i]]++;
+			cellX[pos] = x[i];
+			cellY[pos] = y[i];
+			cellZ[pos] = z[i];
+		}
+	}
+
+	private static double[] getCoordinates(Atom[] atoms, int axis) {
+		double[] coords = new double[atoms.length];
+		for (int i = 0; i < atoms.length; i++) {
+			switch (axis) {
+			case 0:
+				coords[i] = atoms[i].getX();
+				break;
+			case 1:
+				coords[i] = atoms[i].getY();
+				break;
+			default:
+				coords[i] = atoms[i].getZ();
+			}
+		}
+		return coords;
+	}
+
+	private static long cells(double extent, double size) {
+		return (long) Math.floor(extent / size) + 1;
+	}
+
+	/**
+	 * Cell of a coordinate along one axis. Points outside the grid are clamped
+	 * to the border cells.
+	 */
+	private int cell(double coord, double min, int dim) {
+		int c = (int) Math.floor((coord - min) / cellSize);
+		if (c < 0)
+			return 0;
+		if (c >= dim)
+			return dim - 1;
+		return c;
+	}
+
+	private int cellIndex(int cx, int cy, int cz) {
+		return (cx * dimY + cy) * dimZ + cz;
+	}
+
+	/**
+	 * @return the number of atoms
+	 */
+	public int size() {
+		return x.length;
+	}
+
+	public double getX(int i) {
+		return x[i];
+	}
+
+	public double getY(int i) {
+		return y[i];
+	}
+
+	public double getZ(int i) {
+		return z[i];
+	}
+
+	/**
+	 * Find the squared distance from a point to the nearest atom.
+	 *
+	 * @return the squared distance, or infinity if the grid is empty
+	 */
+	public double getNearestDistanceSquared(double px, double py, double pz) {
+		int cx = cell(px, minX, dimX);
+		int cy = cell(py, minY, dimY);
+		int cz = cell(pz, minZ, dimZ);
+
+		double best = Double.POSITIVE_INFINITY;
+		for (int r = 0;; r++) {
+			// Search the cells at Chebyshev distance r from the point's cell
+			int loX = Math.max(cx - r, 0), hiX = Math.min(cx + r, dimX - 1);
+			int loY = Math.max(cy - r, 0), hiY = Math.min(cy + r, dimY - 1);
+			for (int ix = loX; ix <= hiX; ix++) {
+				boolean borderX = ix == cx - r || ix == cx + r;
+				for (int iy = loY; iy <= hiY; iy++) {
+					if (borderX || iy == cy - r || iy == cy + r) {
+						// whole row along z
+						int loZ = Math.max(cz - r, 0), hiZ = Math.min(cz + r, dimZ - 1);
+						for (int iz = loZ; iz <= hiZ; iz++)
+							best = nearestInCell(cellIndex(ix, iy, iz), px, py, pz, best);
+					} else {
+						// only the two ends of the row
+						if (cz - r >= 0)
+							best = nearestInCell(cellIndex(ix, iy, cz - r), px, py, pz, best);
+						if (r > 0 && cz + r < dimZ)
+							best = nearestInCell(cellIndex(ix, iy, cz + r), px, py, pz, best);
+					}
+				}
+			}
+			// Distance to the closest face of the searched cube that has
+			// cells beyond it
+			double bound = Double.POSITIVE_INFINITY;
+			if (cx - r > 0)
+				bound = Math.min(bound, px - minX - (cx - r) * cellSize);
+			if (cx + r < dimX - 1)
+				bound = Math.min(bound, minX + (cx + r + 1) * cellSize - px);
+			if (cy - r > 0)
+				bound = Math.min(bound, py - minY - (cy - r) * cellSize);
+			if (cy + r < dimY - 1)
+				bound = Math.min(bound, minY + (cy + r + 1) * cellSize - py);
+			if (cz - r > 0)
+				bound = Math.min(bound, pz - minZ - (cz - r) * cellSize);
+			if (cz + r < dimZ - 1)
+				bound = Math.min(bound, minZ + (cz + r + 1) * cellSize - pz);
+			// No unvisited cell can contain a closer atom
+			if (bound == Double.POSITIVE_INFINITY || best <= bound * bound)
+				return best;
+		}
+	}
+
+	private double nearestInCell(int c, double px, double py, double pz,
+			double best) {
+		for (int i = cellStart[c]; i < cellStart[c + 1]; i++) {
+			double dx = px - cellX[i];
+			double dy = py - cellY[i];
+			double dz = pz - cellZ[i];
+			double dist = dx * dx + dy * dy + dz * dz;
+			if (dist < best)
+				best = dist;
+		}
+		return best;
+	}
+}
@@ -0,0 +1,324 @@
+package org.biojava.nbio.structure.align.symm.order;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.Calc;
+import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.align.model.AFPChain;
+import org.biojava.nbio.structure.align.symm.order.RotationOrderDetector.NeighborSearch;
+import org.biojava.nbio.structure.align.util.RotationAxis;
+import org.biojava.nbio.structure.symmetry.internal.OrderDetector;
+import org.biojava.nbio.structure.symmetry.internal.RefinerFailedException;
+
+/**
+ * The values that order detectors derive from an alignment of a structure to
+ * itself: the rotation axis, its angle and screw translation, and the
+ * rotation profiles of the structure. Each is calculated the first time it is
+ * needed and kept, so that the detectors of a composite detector, or several
+ * detectors run on the same alignment, do not repeat the work.
+ * <p>
+ * Profiles are kept by their angles, by whether they are sampled with a
+ * {@link CylindricalSweep}, and by the parameters of their
+ * {@link AdaptiveRotationSampler}.
+ * The neighbor search and the pool do not change the distances, so detectors
+ * that only differ by those share the profile.
+ * <p>
+ * Contexts are thread-safe. A profile requested by several threads at once is
+ * calculated by the first one, and the others wait for it. If the first one
+ * is interrupted, the profile is calculated again by one of the others.
+ */
+public class OrderDetectionContext {
+
+	private final AFPChain afpChain;
+	private final Atom[] ca;
+
+	/** The values that only depend on the alignment, shared with {@link #withAtoms(Atom[])} */
+	private final AlignmentValues alignment;
+
+	private final ConcurrentMap<ProfileKey, FutureTask<RotationProfile>> profiles = new ConcurrentHashMap<ProfileKey, FutureTask<RotationProfile>>();
+
+	/**
+	 * @param afpChain
+	 *            alignment of the structure to itself
+	 * @param ca
+	 *            atoms of the structure. They are not copied or modified.
+	 */
+	public OrderDetectionContext(AFPChain afpChain, Atom[] ca) {
+		this(afpChain, ca, new AlignmentValues(afpChain, null));
+	}
+
+	/**
+	 * A context for a known axis, without the alignment. Detectors that need
+	 * the alignment itself can not be run on it.
+	 *
+	 * @param ca
+	 *            atoms of the structure. They are not copied or modified.
+	 * @param axis
+	 *            axis of the symmetry
+	 */
+	public OrderDetectionContext(Atom[] ca, RotationAxis axis) {
+		this(null, ca, new AlignmentValues(null, axis));
+	}
+
+	private OrderDetectionContext(AFPChain afpChain, Atom[] ca,
+			AlignmentValues alignment) {
+		if (ca == null)
+			throw new IllegalArgumentException("Null atoms");
+		this.afpChain = afpChain;
+		this.ca = ca;
+		this.alignment = alignment;
+	}
+
+	/**
+	 * A context for a subset of the atoms of the structure, e.g. the aligned
+	 * residues. It shares the axis, angle and screw translation of this
+	 * context, but not the profiles.
+	 *
+	 * @param atoms
+	 *            atoms of the structure
+	 * @return a new context for the same alignment
+	 */
+	public OrderDetectionContext withAtoms(Atom[] atoms) {
+		return new OrderDetectionContext(afpChain, atoms, alignment);
+	}
+
+	/**
+	 * @return the alignment, or null if the context was created from an axis
+	 */
+	public AFPChain getAfpChain() {
+		return afpChain;
+	}
+
+	public Atom[] getAtoms() {
+		return ca;
+	}
+
+	/**
+	 * @return the axis of the alignment
+	 * @throws StructureException
+	 */
+	public RotationAxis getAxis() throws StructureException {
+		return alignment.getAxis();
+	}
+
+	/**
+	 * @return the rotation angle of the axis, in radians
+	 * @throws StructureException
+	 */
+	public double getAngle() throws StructureException {
+		return alignment.getAngle();
+	}
+
+	/**
+	 * @return the length of the screw translation along the axis, relative to
+	 *         the length of the axis vector
+	 * @throws StructureException
+	 */
+	public double getScrewTranslation() throws StructureException {
+		return alignment.getScrewTranslation();
+	}
+
+	/**
+	 * Calculate the order with any detector. The detectors of this package
+	 * reuse the values of the context; others are given the alignment and
+	 * the atoms.
+	 *
+	 * @param detector
+	 * @return the order
+	 * @throws RefinerFailedException
+	 */
+	public int calculateOrder(OrderDetector detector)
+			throws RefinerFailedException {
+		if (detector instanceof ContextOrderDetector)
+			return ((ContextOrderDetector) detector).calculateOrder(this);
+		if (afpChain == null)
+			throw new IllegalStateException(detector
+					+ " needs an alignment, but the context only has an axis");
+		return detector.calculateOrder(afpChain, ca);
+	}
+
+	/**
+	 * Get the profile of the structure for the given angles, calculating it if
+	 * no equivalent profile was calculated before.
+	 *
+	 * @param angles
+	 *            increasing rotation angles, in radians. They should not be
+	 *            modified.
+	 * @param search
+	 *            how to find the closest atoms
+	 * @param cylindricalSweep
+	 *            rotate with a {@link CylindricalSweep} if the axis has a
+	 *            position, rather than by rotating a copy of the atoms
+	 * @param pool
+	 *            pool to sample the cylindrical sweep in parallel, or null
+	 * @param sampler
+	 *            adaptive sampler of the cylindrical sweep, or null to
+	 *            calculate every angle
+	 * @return the profile
+	 * @throws StructureException
+	 * @throws CancellationException
+	 *             if the current thread is interrupted. A profile that was
+	 *             being calculated by another interrupted thread is
+	 *             calculated again.
+	 */
+	public RotationProfile getRotationProfile(final double[] angles,
+			final NeighborSearch search, boolean cylindricalSweep,
+			final ForkJoinPool pool, final AdaptiveRotationSampler sampler)
+			throws StructureException {
+		final RotationAxis axis = getAxis();
+		final boolean sweep = cylindricalSweep && axis.getRotationPos() != null;
+		ProfileKey key = new ProfileKey(angles, sweep, sweep ? sampler : null);
+
+		FutureTask<RotationProfile> task = profiles.get(key);
+		if (task == null) {
+			FutureTask<RotationProfile> created = new FutureTask<RotationProfile>(
+					new Callable<RotationProfile>() {
+						@Override
+						public RotationProfile call() throws StructureException {
+							if (!sweep)
+								return RotationProfile.calculate(ca, axis, angles, search);
+							CylindricalSweep cylinder = new CylindricalSweep(ca, axis, search);
+							if (sampler != null)
+								return sampler.sample(cylinder, angles);
+							return RotationProfile.calculate(cylinder, angles, pool);
+						}
+					});
+			task = profiles.putIfAbsent(key, created);
+			if (task == null) {
+				task = created;
+				task.run();
+			}
+		}
+
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			CancellationException cancelled = new CancellationException(
+					"Interrupted while waiting for the rotation profile");
+			cancelled.initCause(e);
+			throw cancelled;
+		} catch (ExecutionException e) {
+			// let a later call try again
+			profiles.remove(key, task);
+			Throwable cause = e.getCause();
+			if (cause instanceof CancellationException
+					&& !Thread.currentThread().isInterrupted()) {
+				// another member was interrupted while calculating it
+				return getRotationProfile(angles, search, cylindricalSweep,
+						pool, sampler);
+			}
+			if (cause instanceof StructureException)
+				throw (StructureException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IllegalStateException(
+					"Error calculating the rotation profile", cause);
+		}
+	}
+
+	/**
+	 * @return the number of profiles calculated or being calculated
+	 */
+	public int getProfileCount() {
+		return profiles.size();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[atoms=" + ca.length
+				+ ",profiles=" + profiles.size() + "]";
+	}
+
+	/**
+	 * Values of the alignment, calculated the first time they are needed
+	 */
+	private static class AlignmentValues {
+		private final AFPChain afpChain;
+		private RotationAxis axis;
+		private Double angle;
+		private Double screw;
+
+		public AlignmentValues(AFPChain afpChain, RotationAxis axis) {
+			if (afpChain == null && axis == null)
+				throw new IllegalArgumentException("Null alignment");
+			this.afpChain = afpChain;
+			this.axis = axis;
+		}
+
+		public synchronized RotationAxis getAxis() throws StructureException {
+			if (axis == null)
+				axis = new RotationAxis(afpChain);
+			return axis;
+		}
+
+		public synchronized double getAngle() throws StructureException {
+			if (angle == null)
+				angle = getAxis().getAngle();
+			return angle;
+		}
+
+		public synchronized double getScrewTranslation()
+				throws StructureException {
+			if (screw == null) {
+				RotationAxis axis = getAxis();
+				screw = Calc.amount(axis.getScrewTranslation())
+						/ Calc.amount(axis.getRotationAxis());
+			}
+			return screw;
+		}
+	}
+
+	/**
+	 * Samplers with the same parameters give the same profile, so they are
+	 * compared by their parameters
+	 */
+	private static class ProfileKey {
+		private final double[] angles;
+		private final boolean sweep;
+		private final AdaptiveRotationSampler sampler;
+
+		public ProfileKey(double[] angles, boolean sweep,
+				AdaptiveRotationSampler sampler) {
+			this.angles = angles;
+			this.sweep = sweep;
+			this.sampler = sampler;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = Arrays.hashCode(angles);
+			result = 31 * result + (sweep ? 1 : 0);
+			result = 31 * result
+					+ (sampler == null ? 0 : sampler.getParameterHash());
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof ProfileKey))
+				return false;
+			ProfileKey other = (ProfileKey) obj;
+			if (sampler == null) {
+				if (other.sampler != null)
+					return false;
+			} else if (other.sampler == null
+					|| !sampler.hasSameParameters(other.sampler)) {
+				return false;
+			}
+			return sweep == other.sweep && Arrays.equals(angles, other.angles);
+		}
+	}
+}
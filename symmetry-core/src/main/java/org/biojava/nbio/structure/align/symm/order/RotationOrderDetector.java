@@ -1,6 +1,10 @@
 package org.biojava.nbio.structure.align.symm.order;
 
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.math3.util.Pair;
 import org.biojava.nbio.structure.Atom;
@@ -10,7 +14,6 @@ import org.biojava.nbio.structure.StructureTools;
 import org.biojava.nbio.structure.align.model.AFPChain;
 import org.biojava.nbio.structure.align.util.RotationAxis;
 import org.biojava.nbio.structure.jama.Matrix;
-import org.biojava.nbio.structure.symmetry.internal.OrderDetector;
 import org.biojava.nbio.structure.symmetry.internal.RefinerFailedException;
 
 import static java.lang.Math.*;
@@ -20,7 +23,7 @@ import static java.lang.Math.*;
  * around the axis of symmetry.
  * @author Spencer Bliven
  */
-public class RotationOrderDetector implements OrderDetector {
+public class RotationOrderDetector implements ContextOrderDetector {
 	public static enum RotationOrderMethod {
 		/**
 		 * Model as a sum of sin^2 terms of decreasing period:
@@ -82,6 +85,59 @@ public class RotationOrderDetector implements OrderDetector {
 		SINGLE_CUSP_FIXED_SSE,
 	}
 
+	/**
+	 * Search for the closest atoms in the {@link #superpositionDistance(Atom[], Atom[], NeighborSearch)
+	 * superposition distance}. Both give the same distances, up to rounding
+	 * when a structure is rotated step by step.
+	 */
+	public static enum NeighborSearch {
+		/**
+		 * Compare every pair of atoms: O(N^2) for each angle (the default).
+		 */
+		BRUTE_FORCE,
+		/**
+		 * Sort the atoms in a uniform grid, and only compare with the atoms of
+		 * the neighboring cells until no closer atom is possible. Faster for
+		 * large structures, it must be enabled explicitly.
+		 * Structures with less than {@link #MIN_GRID_ATOMS} atoms are compared
+		 * by brute force, which is faster for them.
+		 */
+		GRID,
+	}
+
+	public static final NeighborSearch DEFAULT_NEIGHBOR_SEARCH = NeighborSearch.BRUTE_FORCE;
+	/** Smallest structure for which the GRID search is used */
+	public static final int MIN_GRID_ATOMS = 200;
+
+	/** Maximum number of fits in the cache */
+	private static final int MAX_CACHED_FITS = 1024;
+	/**
+	 * Least-squares fits for each method, angle grid and set of orders. They
+	 * do not depend on the structure, so they are shared by all detectors.
+	 * The least recently used fit is removed when the cache is full. Access
+	 * must be synchronized on the map.
+	 */
+	private static final Map<FitKey, LeastSquaresFit> fits = createFitCache();
+	/**
+	 * Single-order fits of the orders 1 to maxOrder for each method and angle
+	 * grid, cached like the {@link #fits}.
+	 */
+	private static final Map<FitKey, SingleOrderFits> singleOrderFits = createFitCache();
+
+	/**
+	 * @return an empty cache that removes the least recently used fit when it is full
+	 */
+	private static <V> Map<FitKey, V> createFitCache() {
+		return new LinkedHashMap<FitKey, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<FitKey, V> eldest) {
+				return size() > MAX_CACHED_FITS;
+			}
+		};
+	}
+
 	private int maxOrder;
 
 	public static final double DEFAULT_ANGLE_INCR = Math.toRadians(5);
@@ -89,6 +145,10 @@ public class RotationOrderDetector implements OrderDetector {
 
 	private RotationOrderMethod method;
 	private double minAngle;
+	private NeighborSearch neighborSearch = DEFAULT_NEIGHBOR_SEARCH;
+	private boolean cylindricalSweep = false;
+	private ForkJoinPool sweepPool;
+	private AdaptiveRotationSampler adaptiveSampler;
 	public RotationOrderDetector() {
 		this(8);
 	}
@@ -122,6 +182,69 @@ public class RotationOrderDetector implements OrderDetector {
 	public int getMaxOrder() {
 		return maxOrder;
 	}
+	public NeighborSearch getNeighborSearch() {
+		return neighborSearch;
+	}
+	/**
+	 * @param neighborSearch search for the closest atoms of the rotated structure,
+	 *  {@link NeighborSearch#BRUTE_FORCE} by default
+	 */
+	public void setNeighborSearch(NeighborSearch neighborSearch) {
+		this.neighborSearch = neighborSearch;
+	}
+	public boolean isCylindricalSweep() {
+		return cylindricalSweep;
+	}
+	/**
+	 * @param cylindricalSweep evaluate each angle from the coordinates about
+	 *  the axis with a {@link CylindricalSweep}, rather than by rotating a copy
+	 *  of the atoms step by step (default). The sweep does not accumulate the
+	 *  rounding errors of the steps, so its distances differ from the
+	 *  step-by-step ones by about 1e-13, which can change the order when two
+	 *  fits are almost equal. The sweep pool and the adaptive sampler are
+	 *  only used with the sweep.
+	 */
+	public void setCylindricalSweep(boolean cylindricalSweep) {
+		this.cylindricalSweep = cylindricalSweep;
+	}
+	/**
+	 * @return the pool used to sample the angles in parallel, or null
+	 */
+	public ForkJoinPool getSweepPool() {
+		return sweepPool;
+	}
+	/**
+	 * Sample the angles of the cylindrical sweep in parallel on a shared pool,
+	 * e.g. {@link ForkJoinPool#commonPool()}, when the structure is large and
+	 * the pool has idle threads. Null (the default) for a serial sweep. Only
+	 * used with {@link #setCylindricalSweep(boolean) the cylindrical sweep}.
+	 * @param sweepPool
+	 * @see CylindricalSweep#getSuperpositionDistances(double[], ForkJoinPool)
+	 */
+	public void setSweepPool(ForkJoinPool sweepPool) {
+		this.sweepPool = sweepPool;
+	}
+	/**
+	 * @return the sampler of the angles, or null if every angle is calculated
+	 */
+	public AdaptiveRotationSampler getAdaptiveSampler() {
+		return adaptiveSampler;
+	}
+	/**
+	 * Calculate the angles of the cylindrical sweep adaptively, refining only
+	 * around the possible minima. Null (the default) to calculate every angle.
+	 * The sampler counts the distances calculated. Only used with
+	 * {@link #setCylindricalSweep(boolean) the cylindrical sweep}.
+	 * <p>
+	 * The sampler is lossy, since the rest of the profile is interpolated, but
+	 * the minima that the fits depend on are kept. It saves about 1.8x of the
+	 * distances on the default 5 degree grid, and 7x on a 1 degree grid.
+	 * @param adaptiveSampler
+	 * @see AdaptiveRotationSampler
+	 */
+	public void setAdaptiveSampler(AdaptiveRotationSampler adaptiveSampler) {
+		this.adaptiveSampler = adaptiveSampler;
+	}
 
 	public void setMaxOrder(int maxOrder) {
 		this.maxOrder = maxOrder;
@@ -137,82 +260,138 @@ public class RotationOrderDetector implements OrderDetector {
 
 	@Override
 	public int calculateOrder(AFPChain afpChain, Atom[] ca) throws RefinerFailedException {
-		//TODO only use aligned residues, rather than the whole ca
+		return calculateOrder(new OrderDetectionContext(afpChain, ca));
+	}
+
+	@Override
+	public int calculateOrder(OrderDetectionContext context) throws RefinerFailedException {
+		// see AlignedSubsetOrderDetector to only use the aligned residues
 		try {
 
-			RotationAxis axis = new RotationAxis(afpChain);
+			RotationAxis axis = context.getAxis();
 
 			// Use C1 order if the axis is undefined
 			if(!axis.isDefined()) {
 				return 1;
 			}
-			
-			// Calculate optimum
-			switch(method) {
-			case HARMONICS: {
-				double[] coefficients = tryAllOrders(ca, axis, false);
-				
-				return maxIndex(coefficients, 1);
-			}
-			case HARMONICS_FLOATING: {
-				double[] coefficients = tryAllOrders(ca, axis, true);
-				
-				return maxIndex(coefficients, 1);
-			}
-			case SINGLE_HARMONIC_AMP:
-			case SINGLE_CUSP_AMP:
-			case SINGLE_CUSP_FIXED_AMP: {
-				// Calculate weights for each order
-				double[] coefficients = trySingleOrdersByAmp(ca,axis);
-
-				// Find order with maximum weight
-				return maxIndex(coefficients,0) + 1;
-			}
-			case SINGLE_HARMONIC_SSE:
-			case SINGLE_CUSP_SSE:
-			case SINGLE_CUSP_FIXED_SSE: {
-				// Calculate weights for each order
-				double[] coefficients = trySingleOrdersBySSE(ca,axis);
-				
-				// Find order with minimum SSE
-				return minIndex(coefficients,0) + 1;
-			}
-			default:
-				throw new UnsupportedOperationException("Unimplemented method "+method);
-			}
+
+			return calculateOrder(getRotationProfile(context));
 
 		} catch (StructureException e) {
 			throw new RefinerFailedException(e);
 		}
 	}
 
+	/**
+	 * Calculate the order from the rotation profile of a structure.
+	 * @param profile profile for the angles of {@link #getAngles()}
+	 * @return the order
+	 * @throws StructureException
+	 */
+	public int calculateOrder(RotationProfile profile) throws StructureException {
+		// Calculate optimum
+		switch(method) {
+		case HARMONICS: {
+			double[] coefficients = tryAllOrders(profile, false);
+			
+			return maxIndex(coefficients, 1);
+		}
+		case HARMONICS_FLOATING: {
+			double[] coefficients = tryAllOrders(profile, true);
+			
+			return maxIndex(coefficients, 1);
+		}
+		case SINGLE_HARMONIC_AMP:
+		case SINGLE_CUSP_AMP:
+		case SINGLE_CUSP_FIXED_AMP: {
+			// Calculate weights for each order
+			double[] coefficients = trySingleOrdersByAmp(profile);
+
+			// Find order with maximum weight
+			return maxIndex(coefficients,0) + 1;
+		}
+		case SINGLE_HARMONIC_SSE:
+		case SINGLE_CUSP_SSE:
+		case SINGLE_CUSP_FIXED_SSE: {
+			// Calculate weights for each order
+			double[] coefficients = trySingleOrdersBySSE(profile);
+			
+			// Find order with minimum SSE
+			return minIndex(coefficients,0) + 1;
+		}
+		default:
+			throw new UnsupportedOperationException("Unimplemented method "+method);
+		}
+	}
+
 	/**
 	 * Returns an array of {@link #superpositionDistance(Atom[], Atom[]) superposition distances} of rotations of {@code ca}.
 	 * The {@code n}th element in the array corresponds to a rotation by {@code degreesIncrement * n} degrees.
 	 */
 	public static Pair<double[],double[]> sampleRotations(Atom[] ca, RotationAxis axis, double degreesIncrement) throws StructureException {
-		final double angleIncr = Math.toRadians(degreesIncrement);
-		final int steps = (int)floor(2*PI/angleIncr);
+		return sampleRotations(ca, axis, degreesIncrement, DEFAULT_NEIGHBOR_SEARCH);
+	}
 
-		double[] angles = new double[steps];
-		double[] distances = new double[steps];
+	/**
+	 * Returns an array of {@link #superpositionDistance(Atom[], Atom[], NeighborSearch) superposition distances} of rotations of {@code ca}.
+	 * The {@code n}th element in the array corresponds to a rotation by {@code degreesIncrement * n} degrees.
+	 * <p>
+	 * This rotates a copy of the atoms step by step, as the detectors do by
+	 * default, so the distances are the reference for the fits. It also works
+	 * for an axis without a position. {@link RotationProfile#sample(CylindricalSweep, double)}
+	 * samples the same angles without the copy.
+	 */
+	public static Pair<double[],double[]> sampleRotations(Atom[] ca, RotationAxis axis, double degreesIncrement, NeighborSearch search) throws StructureException {
+		final double angleIncr = Math.toRadians(degreesIncrement);
+		double[] angles = getSampleAngles(degreesIncrement);
+		double[] distances = new double[angles.length];
 
 		Atom[] ca2 = StructureTools.cloneAtomArray(ca);
-		double angle = 0;
+		NeighborGrid grid = createGrid(ca, search);
+		Atom[] inv = grid == null ? null : StructureTools.cloneAtomArray(ca);
 
-		for (int step=0; step<steps;step++) {
-			angles[step] = angle;
-			double dist = superpositionDistance(ca, ca2);
+		for (int step=0; step<angles.length;step++) {
+			checkInterrupted();
+			double dist = superpositionDistance(ca, grid, ca2, inv);
 			distances[step] = dist;
 			// Rotate for next step
 			axis.rotate(ca2, angleIncr);
-			angle += angleIncr;
+			if(inv != null) {
+				axis.rotate(inv, -angleIncr);
+			}
 		}
 
 		return new Pair<double[], double[]>(angles, distances);
 
 	}
 
+	/**
+	 * Stop sampling the rotations if the thread was interrupted, e.g. by an
+	 * {@link EnsembleOrderDetector} after the deadline of a member. The
+	 * interrupt status is kept.
+	 * @throws CancellationException if the current thread is interrupted
+	 */
+	static void checkInterrupted() {
+		if (Thread.currentThread().isInterrupted())
+			throw new CancellationException("Interrupted while sampling the rotations");
+	}
+
+	/**
+	 * @return the angles of {@link #sampleRotations(Atom[], RotationAxis, double)}, in radians
+	 */
+	static double[] getSampleAngles(double degreesIncrement) {
+		final double angleIncr = Math.toRadians(degreesIncrement);
+		final int steps = (int)floor(2*PI/angleIncr);
+
+		double[] angles = new double[steps];
+		double angle = 0;
+		for (int step=0; step<steps;step++) {
+			angles[step] = angle;
+			angle += angleIncr;
+		}
+		return angles;
+	}
+
 	/**
 	 * Provide a rough alignment-free metric for the similarity between two
 	 * superimposed structures.
@@ -225,6 +404,87 @@ public class RotationOrderDetector implements OrderDetector {
 	 * @throws StructureException if an error occurs finding distances between atoms
 	 */
 	public static double superpositionDistance(Atom[] ca1, Atom[] ca2) throws StructureException {
+		return superpositionDistance(ca1, ca2, DEFAULT_NEIGHBOR_SEARCH);
+	}
+
+	/**
+	 * Provide a rough alignment-free metric for the similarity between two
+	 * superimposed structures.
+	 *
+	 * The average distance from each atom to the closest atom in the other
+	 * is used.
+	 * @param ca1 first structure
+	 * @param ca2 second structure
+	 * @param search how to find the closest atoms
+	 * @return the average distance to the closest atom
+	 * @throws StructureException if an error occurs finding distances between atoms
+	 */
+	public static double superpositionDistance(Atom[] ca1, Atom[] ca2, NeighborSearch search) throws StructureException {
+		return superpositionDistance(ca1, createGrid(ca1, search), ca2);
+	}
+
+	/**
+	 * @return a grid of the atoms if they should be searched with one, or null
+	 */
+	private static NeighborGrid createGrid(Atom[] ca, NeighborSearch search) {
+		switch(search) {
+		case BRUTE_FORCE:
+			return null;
+		case GRID:
+			return ca.length < MIN_GRID_ATOMS ? null : new NeighborGrid(ca);
+		default:
+			throw new UnsupportedOperationException("Unimplemented search "+search);
+		}
+	}
+
+	/**
+	 * @param grid1 grid of ca1, or null for a brute force search
+	 */
+	private static double superpositionDistance(Atom[] ca1, NeighborGrid grid1, Atom[] ca2) throws StructureException {
+		if( grid1 == null ) {
+			return superpositionDistanceBruteForce(ca1, ca2);
+		}
+		return superpositionDistance(grid1, new NeighborGrid(ca2));
+	}
+
+	/**
+	 * Superposition distance of ca1 and its copy ca2 rotated around an axis.
+	 * The closest atom of ca2 to an atom of ca1 is the closest atom of ca1 to
+	 * the atom rotated backwards, so the grid of ca1 serves both directions
+	 * and is reused for all angles.
+	 * @param grid1 grid of ca1, or null for a brute force search
+	 * @param inv copy of ca1 rotated by the opposite angle, or null without a grid
+	 */
+	private static double superpositionDistance(Atom[] ca1, NeighborGrid grid1, Atom[] ca2, Atom[] inv) throws StructureException {
+		if( grid1 == null ) {
+			return superpositionDistanceBruteForce(ca1, ca2);
+		}
+		double total = 0;
+		for(int i=0;i<inv.length;i++) {
+			total += sqrt(grid1.getNearestDistanceSquared(inv[i].getX(), inv[i].getY(), inv[i].getZ()));
+		}
+		for(int j=0;j<ca2.length;j++) {
+			total += sqrt(grid1.getNearestDistanceSquared(ca2[j].getX(), ca2[j].getY(), ca2[j].getZ()));
+		}
+
+		double dist = total/(inv.length+ca2.length);
+		return dist;
+	}
+
+	private static double superpositionDistance(NeighborGrid grid1, NeighborGrid grid2) {
+		double total = 0;
+		for(int i=0;i<grid1.size();i++) {
+			total += sqrt(grid2.getNearestDistanceSquared(grid1.getX(i), grid1.getY(i), grid1.getZ(i)));
+		}
+		for(int j=0;j<grid2.size();j++) {
+			total += sqrt(grid1.getNearestDistanceSquared(grid2.getX(j), grid2.getY(j), grid2.getZ(j)));
+		}
+
+		double dist = total/(grid1.size()+grid2.size());
+		return dist;
+	}
+
+	private static double superpositionDistanceBruteForce(Atom[] ca1, Atom[] ca2) throws StructureException {
 
 		// Store the closest distance yet found
 		double[] bestDist1 = new double[ca1.length];
@@ -256,6 +516,30 @@ public class RotationOrderDetector implements OrderDetector {
 		return dist;
 	}
 
+	/**
+	 * Calculate the superposition distances of ca rotated by each angle of
+	 * {@link #getAngles()}. The profile can be used for all the fits of this
+	 * detector and of other detectors with the same angles.
+	 * @param ca Atoms to rotate
+	 * @param axis Axis about which to rotate ca
+	 * @return the rotation profile
+	 * @throws StructureException For errors during rotation
+	 */
+	public RotationProfile getRotationProfile(Atom[] ca, RotationAxis axis) throws StructureException {
+		return getRotationProfile(new OrderDetectionContext(ca, axis));
+	}
+
+	/**
+	 * Get the profile for the angles of {@link #getAngles()} from the context,
+	 * calculating it if no detector needed it before.
+	 * @param context the structure and its axis
+	 * @return the rotation profile
+	 * @throws StructureException For errors during rotation
+	 */
+	public RotationProfile getRotationProfile(OrderDetectionContext context) throws StructureException {
+		return context.getRotationProfile(getAngles(), neighborSearch, cylindricalSweep, sweepPool, adaptiveSampler);
+	}
+
 	protected double[] getAngles() {
 		final double firstAngle = ceil(this.minAngle/angleIncr)*angleIncr; // first valid peak
 		final double maxAngle = PI;
@@ -269,21 +553,39 @@ public class RotationOrderDetector implements OrderDetector {
 		return angles;
 	}
 	protected static double[] getSuperpositionDistances(Atom[] ca, RotationAxis axis, double[] angles) throws StructureException {
+		return getSuperpositionDistances(ca, axis, angles, DEFAULT_NEIGHBOR_SEARCH);
+	}
+	/**
+	 * Rotate a copy of the atoms step by step through the angles. This is the
+	 * default of the detectors, kept because its distances are the reference
+	 * for the fits, and because it also works for an axis without a position.
+	 * @see CylindricalSweep#getSuperpositionDistances(double[])
+	 */
+	protected static double[] getSuperpositionDistances(Atom[] ca, RotationAxis axis, double[] angles, NeighborSearch search) throws StructureException {
 		int steps = angles.length;
 
 		double[] distances = new double[steps];
 		if(steps < 1) return distances;
 
 		Atom[] ca2 = StructureTools.cloneAtomArray(ca);
+		NeighborGrid grid = createGrid(ca, search);
+		Atom[] inv = grid == null ? null : StructureTools.cloneAtomArray(ca);
 
 		// step 0
 		if(angles[0] > 0) {
 			axis.rotate(ca2, angles[0]);
+			if(inv != null) {
+				axis.rotate(inv, -angles[0]);
+			}
 		}
-		distances[0] = superpositionDistance(ca, ca2);
+		distances[0] = superpositionDistance(ca, grid, ca2, inv);
 		for (int step=1; step<steps;step++) {
+			checkInterrupted();
 			axis.rotate(ca2, angles[step]-angles[step-1]);
-			distances[step] = superpositionDistance(ca, ca2);
+			if(inv != null) {
+				axis.rotate(inv, angles[step-1]-angles[step]);
+			}
+			distances[step] = superpositionDistance(ca, grid, ca2, inv);
 		}
 
 		return distances;
@@ -342,83 +644,123 @@ public class RotationOrderDetector implements OrderDetector {
 		return new Matrix(features);
 	}
 
-	/**
-	 * Fit a method-dependent function f(theta,order) to the superposition
-	 * distance as atoms ca are rotated around an axis.
-	 * 
-	 * Returns the root mean squared error (square root of the SSE).
-	 * @param ca Atoms to rotate
-	 * @param axis Axis about which to rotate ca
-	 * @param orders A list of orders to include in the fit, with 0 indicating an intercept
-	 * @return root sum squared error
-	 * @throws StructureException For errors during rotation
-	 */
-	private double getSSEForFit(Atom[] ca, RotationAxis axis, int[] orders) throws StructureException {
-		double[] angles = getAngles();
-		double[] distances = getSuperpositionDistances(ca,axis, angles);
-		return getSSEForFit(angles,distances,orders);
-	}
 	protected double getSSEForFit(double[] angles,double[] distances, int[] orders) throws StructureException {
+		return getFit(angles, orders).getRootMeanSquaredError(distances);
+	}
 
-		int steps = angles.length;
-
-		Matrix y = new Matrix(distances,steps);
-		Matrix M = computeFeatureMatrix(angles, orders);
-
-		Matrix A = M.transpose().times(M).times(2);
-		Matrix b = M.transpose().times(y).times(2);
-		//Matrix c = y.transpose().times(y);
-
-		// f(x) = x'Ax/2-bx+c
-		// f'(x) = Ax-b = 0
-		// Ax = b
-
-		Matrix weights = A.solve(b);
-
-
-		// Calculate sse
-		Matrix predictions = M.times(weights);
-		predictions.minusEquals(y);//errors
-		Matrix sse = predictions.transpose().times(predictions);
-
-		return sqrt(sse.get(0, 0)/steps);
-
+	protected double[] getWeightsForFit(double[] angles, double[] distances, int[] orders) throws StructureException {
+		return getFit(angles, orders).getWeights(distances);
 	}
 
 	/**
-	 * Fit a method-dependent function f(theta,order) to the superposition
-	 * distance as atoms ca are rotated around an axis.
+	 * Get the least-squares fit of f(theta,order) for the current method,
+	 * from the shared cache if it was already computed.
 	 * 
-	 * Returns the root mean squared error (square root of the SSE).
-	 * @param ca Atoms to rotate
-	 * @param axis Axis about which to rotate ca
+	 * The fit minimizes f(x) = x'Ax/2-bx+c, with A = 2M'M and b = 2M'y, so
+	 * the weights are the solution of (M'M)x = M'y.
+	 * @param angles angles of the samples
 	 * @param orders A list of orders to include in the fit, with 0 indicating an intercept
-	 * @return root sum squared error
-	 * @throws StructureException For errors during rotation
+	 * @return the fit for these angles and orders
 	 */
-	private double[] getWeightsForFit(Atom[] ca, RotationAxis axis, int[] orders) throws StructureException {
-		double[] angles = getAngles();
-		double[] distances = getSuperpositionDistances(ca,axis, angles);
-		return getWeightsForFit(angles, distances, orders);
+	private LeastSquaresFit getFit(double[] angles, int[] orders) {
+		// look up without copying the arrays
+		FitKey key = new FitKey(method, angles, orders);
+		LeastSquaresFit fit;
+		synchronized( fits ) {
+			fit = fits.get(key);
+		}
+		if( fit == null ) {
+			// fit outside of the lock, a concurrent fit is the same
+			fit = new LeastSquaresFit(computeFeatureMatrix(angles, orders));
+			synchronized( fits ) {
+				LeastSquaresFit previous = fits.get(key);
+				if( previous != null ) {
+					fit = previous;
+				} else {
+					fits.put(key.copy(), fit);
+				}
+			}
+		}
+		return fit;
 	}
-	protected double[] getWeightsForFit(double[] angles, double[] distances, int[] orders) throws StructureException {
 
-		int steps = angles.length;
+	/**
+	 * Get the fits of a single order with an intercept for the orders 1 to
+	 * maxOrder, from the shared cache if they were already computed.
+	 * @param angles angles of the samples
+	 * @return the fits of all the orders, evaluated together
+	 */
+	private SingleOrderFits getSingleOrderFits(double[] angles) {
+		int[] orders = new int[maxOrder];
+		for( int order=1;order <= maxOrder; order++) {
+			orders[order-1] = order;
+		}
+		FitKey key = new FitKey(method, angles, orders);
+		SingleOrderFits batch;
+		synchronized( singleOrderFits ) {
+			batch = singleOrderFits.get(key);
+		}
+		if( batch == null ) {
+			LeastSquaresFit[] orderFits = new LeastSquaresFit[maxOrder];
+			for( int order=1;order <= maxOrder; order++) {
+				orderFits[order-1] = getFit(angles, new int[] {0,order});
+			}
+			batch = new SingleOrderFits(orderFits);
+			synchronized( singleOrderFits ) {
+				SingleOrderFits previous = singleOrderFits.get(key);
+				if( previous != null ) {
+					batch = previous;
+				} else {
+					singleOrderFits.put(key.copy(), batch);
+				}
+			}
+		}
+		return batch;
+	}
 
-		Matrix y = new Matrix(distances,steps);
-		Matrix M = computeFeatureMatrix(angles, orders);
+	/**
+	 * Key of the cache of fits. Lookups use the arrays of the caller, and
+	 * the keys stored in the cache are {@link #copy() copies}.
+	 */
+	private static final class FitKey {
+		private final RotationOrderMethod method;
+		private final double[] angles;
+		private final int[] orders;
+		private final int hash;
+
+		public FitKey(RotationOrderMethod method, double[] angles, int[] orders) {
+			this(method, angles, orders, 31*(31*method.hashCode() + Arrays.hashCode(angles)) + Arrays.hashCode(orders));
+		}
 
-		Matrix A = M.transpose().times(M).times(2);
-		Matrix b = M.transpose().times(y).times(2);
-		//Matrix c = y.transpose().times(y);
+		private FitKey(RotationOrderMethod method, double[] angles, int[] orders, int hash) {
+			this.method = method;
+			this.angles = angles;
+			this.orders = orders;
+			this.hash = hash;
+		}
 
-		// f(x) = x'Ax/2-bx+c
-		// f'(x) = Ax-b = 0
-		// Ax = b
+		/**
+		 * @return a key with copies of the arrays, which the caller cannot modify
+		 */
+		public FitKey copy() {
+			return new FitKey(method, angles.clone(), orders.clone(), hash);
+		}
 
-		Matrix weights = A.solve(b);
+		@Override
+		public int hashCode() {
+			return hash;
+		}
 
-		return weights.getColumnPackedCopy();
+		@Override
+		public boolean equals(Object obj) {
+			if( this == obj )
+				return true;
+			if( !(obj instanceof FitKey) )
+				return false;
+			FitKey other = (FitKey) obj;
+			return method == other.method && Arrays.equals(orders, other.orders)
+					&& Arrays.equals(angles, other.angles);
+		}
 	}
 
 
@@ -431,14 +773,18 @@ public class RotationOrderDetector implements OrderDetector {
 	 * @throws StructureException For errors applying the rotation
 	 */
 	public double[] trySingleOrdersBySSE(Atom[] ca, RotationAxis axis) throws StructureException {
-		double[] sses = new double[maxOrder];
-
-		for( int order=1;order <= maxOrder; order++) {
-			// Calculate RSSE (could save some arithmetic, but this is easier to compare)
-			sses[order-1] = getSSEForFit(ca, axis, new int[] {0,order});
-		}
-
-		return sses;
+		return trySingleOrdersBySSE(getRotationProfile(ca, axis));
+	}
+	/**
+	 * For each order from 1 to maxOrder, calculate the root SSE from fitting
+	 * a single-order function (with intercept).
+	 * @param profile rotation profile of the structure
+	 * @return An array of length maxOrder containing the root mean squared error
+	 * @throws StructureException
+	 */
+	public double[] trySingleOrdersBySSE(RotationProfile profile) throws StructureException {
+		// all orders in one pass, with the same errors as getSSEForFit for each order
+		return getSingleOrderFits(profile.getAngles()).getRootMeanSquaredErrors(profile.getDistances());
 	}
 	/**
 	 * For each order from 1 to maxOrder, calculate the amplitude from fitting
@@ -449,15 +795,18 @@ public class RotationOrderDetector implements OrderDetector {
 	 * @throws StructureException For errors applying the rotation
 	 */
 	public double[] trySingleOrdersByAmp(Atom[] ca, RotationAxis axis) throws StructureException {
-		double[] amps = new double[maxOrder];
-
-		for( int order=1;order <= maxOrder; order++) {
-			// Calculate RSSE (could save some arithmetic, but this is easier to compare)
-			double[] weights = getWeightsForFit(ca, axis, new int[] {0,order});
-			amps[order-1] = weights[1];
-		}
-
-		return amps;
+		return trySingleOrdersByAmp(getRotationProfile(ca, axis));
+	}
+	/**
+	 * For each order from 1 to maxOrder, calculate the amplitude from fitting
+	 * a single-order function (with intercept).
+	 * @param profile rotation profile of the structure
+	 * @return An array of length maxOrder containing the amplitude of the function
+	 * @throws StructureException
+	 */
+	public double[] trySingleOrdersByAmp(RotationProfile profile) throws StructureException {
+		// all orders in one pass, with the same amplitudes as getWeightsForFit for each order
+		return getSingleOrderFits(profile.getAngles()).getAmplitudes(profile.getDistances());
 	}
 	/**
 	 * For each order from 1 to maxOrder, calculate the amplitude from fitting
@@ -469,11 +818,22 @@ public class RotationOrderDetector implements OrderDetector {
 	 * @throws StructureException For errors applying the rotation
 	 */
 	public double[] trySingleOrdersByAmp(Atom[] ca, RotationAxis axis,int[] orders) throws StructureException {
+		return trySingleOrdersByAmp(getRotationProfile(ca, axis), orders);
+	}
+	/**
+	 * For each of the given orders, calculate the amplitude from fitting
+	 * a single-order function (with intercept).
+	 * @param profile rotation profile of the structure
+	 * @param orders array of orders to compute
+	 * @return An array of length orders.length containing the amplitude of the function
+	 * @throws StructureException
+	 */
+	public double[] trySingleOrdersByAmp(RotationProfile profile,int[] orders) throws StructureException {
 		double[] amps = new double[orders.length];
 
 		for( int i = 0;i<orders.length;i++) {
 			// Calculate RSSE (could save some arithmetic, but this is easier to compare)
-			double[] weights = getWeightsForFit(ca, axis, new int[] {0,orders[i]});
+			double[] weights = getWeightsForFit(profile.getAngles(), profile.getDistances(), new int[] {0,orders[i]});
 			amps[i] = weights[1];
 		}
 
@@ -492,18 +852,33 @@ public class RotationOrderDetector implements OrderDetector {
 	 * @throws StructureException 
 	 */
 	public double[] tryAllOrders(Atom[] ca, RotationAxis axis,boolean intercept) throws StructureException {
+		return tryAllOrders(getRotationProfile(ca, axis), intercept);
+	}
+	/**
+	 * Fit a linear sum of f(theta,order) for all orders from 1 to maxOrder.
+	 * @param profile rotation profile of the structure
+	 * @param intercept Indicates whether the intercept should be included (true)
+	 *  or forced to 0 (false)
+	 * @return An array of length maxOrder+1 containing the intercept followed
+	 *  by the amplitudes for each order. If (!intercept), the first element will
+	 *  always be 0.
+	 * @throws StructureException
+	 */
+	public double[] tryAllOrders(RotationProfile profile,boolean intercept) throws StructureException {
+		double[] angles = profile.getAngles();
+		double[] distances = profile.getDistances();
 		if(intercept) {
 			int[] orders = new int[maxOrder+1];
 			for(int i=0;i<=maxOrder;i++) {
 				orders[i] = i;
 			}
-			return getWeightsForFit(ca, axis, orders);
+			return getWeightsForFit(angles, distances, orders);
 		} else {
 			int[] orders = new int[maxOrder];
 			for(int i=0;i<maxOrder;i++) {
 				orders[i] = i+1;
 			}
-			double[] amps = getWeightsForFit(ca, axis, orders);
+			double[] amps = getWeightsForFit(angles, distances, orders);
 			// Prepend 0 for intercept
 			double[] ampIntercept = new double[maxOrder+1];
 			ampIntercept[0] = 0.;
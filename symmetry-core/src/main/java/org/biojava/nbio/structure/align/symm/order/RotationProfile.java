@@ -0,0 +1,200 @@
+package org.biojava.nbio.structure.align.symm.order;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.math3.util.Pair;
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.align.symm.order.RotationOrderDetector.NeighborSearch;
+import org.biojava.nbio.structure.align.util.RotationAxis;
+
+/**
+ * The {@link RotationOrderDetector#superpositionDistance(Atom[], Atom[])
+ * superposition distance} of a structure rotated around its axis, for a set of
+ * angles.
+ * <p>
+ * Calculating the distances is the expensive part of the rotation-based order
+ * detection, so the profile of a structure is calculated once and shared by
+ * all the fits and detectors that use the same angles. The arrays are not
+ * copied and should not be modified.
+ */
+public class RotationProfile {
+
+	private final double[] angles;
+	private final double[] distances;
+
+	/**
+	 * @param angles
+	 *            rotation angles, in radians
+	 * @param distances
+	 *            superposition distance for each angle
+	 */
+	public RotationProfile(double[] angles, double[] distances) {
+		if (angles.length != distances.length)
+			throw new IllegalArgumentException("Got " + angles.length
+					+ " angles and " + distances.length + " distances");
+		this.angles = angles;
+		this.distances = distances;
+	}
+
+	/**
+	 * Calculate the profile of a structure for the given angles.
+	 *
+	 * @param ca
+	 *            Atoms to rotate
+	 * @param axis
+	 *            Axis about which to rotate ca
+	 * @param angles
+	 *            increasing rotation angles, in radians
+	 * @return the profile
+	 * @throws StructureException
+	 *             For errors during rotation
+	 */
+	public static RotationProfile calculate(Atom[] ca, RotationAxis axis,
+			double[] angles) throws StructureException {
+		return calculate(ca, axis, angles,
+				RotationOrderDetector.DEFAULT_NEIGHBOR_SEARCH);
+	}
+
+	/**
+	 * Calculate the profile of a structure for the given angles.
+	 *
+	 * @param ca
+	 *            Atoms to rotate
+	 * @param axis
+	 *            Axis about which to rotate ca
+	 * @param angles
+	 *            increasing rotation angles, in radians
+	 * @param search
+	 *            how to find the closest atoms
+	 * @return the profile
+	 * @throws StructureException
+	 *             For errors during rotation
+	 */
+	public static RotationProfile calculate(Atom[] ca, RotationAxis axis,
+			double[] angles, NeighborSearch search) throws StructureException {
+		double[] distances = RotationOrderDetector.getSuperpositionDistances(
+				ca, axis, angles, search);
+		return new RotationProfile(angles, distances);
+	}
+
+	/**
+	 * Calculate the profile of a structure for the given angles.
+	 *
+	 * @param sweep
+	 *            the structure in the coordinates of its axis
+	 * @param angles
+	 *            rotation angles, in radians
+	 * @return the profile
+	 */
+	public static RotationProfile calculate(CylindricalSweep sweep,
+			double[] angles) {
+		return calculate(sweep, angles, null);
+	}
+
+	/**
+	 * Calculate the profile of a structure for the given angles, in parallel
+	 * if the pool has idle threads.
+	 *
+	 * @param sweep
+	 *            the structure in the coordinates of its axis
+	 * @param angles
+	 *            rotation angles, in radians
+	 * @param pool
+	 *            pool to sample the angles in parallel, or null
+	 * @return the profile
+	 * @see CylindricalSweep#getSuperpositionDistances(double[], ForkJoinPool)
+	 */
+	public static RotationProfile calculate(CylindricalSweep sweep,
+			double[] angles, ForkJoinPool pool) {
+		return new RotationProfile(angles,
+				sweep.getSuperpositionDistances(angles, pool));
+	}
+
+	/**
+	 * Calculate the profile of a structure for a full rotation, sampled at
+	 * regular intervals.
+	 *
+	 * @see RotationOrderDetector#sampleRotations(Atom[], RotationAxis, double)
+	 */
+	public static RotationProfile sample(Atom[] ca, RotationAxis axis,
+			double degreesIncrement) throws StructureException {
+		return sample(ca, axis, degreesIncrement,
+				RotationOrderDetector.DEFAULT_NEIGHBOR_SEARCH);
+	}
+
+	/**
+	 * Calculate the profile of a structure for a full rotation, sampled at
+	 * regular intervals.
+	 *
+	 * @see RotationOrderDetector#sampleRotations(Atom[], RotationAxis, double,
+	 *      NeighborSearch)
+	 */
+	public static RotationProfile sample(Atom[] ca, RotationAxis axis,
+			double degreesIncrement, NeighborSearch search)
+			throws StructureException {
+		Pair<double[], double[]> samples = RotationOrderDetector
+				.sampleRotations(ca, axis, degreesIncrement, search);
+		return new RotationProfile(samples.getKey(), samples.getValue());
+	}
+
+	/**
+	 * Calculate the profile of a structure for a full rotation, sampled at
+	 * the same angles as
+	 * {@link RotationOrderDetector#sampleRotations(Atom[], RotationAxis, double)}.
+	 *
+	 * @param sweep
+	 *            the structure in the coordinates of its axis
+	 * @param degreesIncrement
+	 *            sampling interval, in degrees
+	 * @return the profile
+	 */
+	public static RotationProfile sample(CylindricalSweep sweep,
+			double degreesIncrement) {
+		return sample(sweep, degreesIncrement, null);
+	}
+
+	/**
+	 * Calculate the profile of a structure for a full rotation, in parallel
+	 * if the pool has idle threads.
+	 *
+	 * @param sweep
+	 *            the structure in the coordinates of its axis
+	 * @param degreesIncrement
+	 *            sampling interval, in degrees
+	 * @param pool
+	 *            pool to sample the angles in parallel, or null
+	 * @return the profile
+	 */
+	public static RotationProfile sample(CylindricalSweep sweep,
+			double degreesIncrement, ForkJoinPool pool) {
+		return calculate(sweep,
+				RotationOrderDetector.getSampleAngles(degreesIncrement), pool);
+	}
+
+	/**
+	 * @return the rotation angles, in radians
+	 */
+	public double[] getAngles() {
+		return angles;
+	}
+
+	/**
+	 * @return the superposition distance for each angle
+	 */
+	public double[] getDistances() {
+		return distances;
+	}
+
+	/**
+	 * @return the number of angles
+	 */
+	public int size() {
+		return angles.length;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[size=" + angles.length + "]";
+	}
+}
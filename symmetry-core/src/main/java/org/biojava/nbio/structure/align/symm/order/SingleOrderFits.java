@@ -0,0 +1,101 @@
+package org.biojava.nbio.structure.align.symm.order;
+
+/**
+ * Least-squares fits of a single order with an intercept, for several orders
+ * on the same samples. All the orders are fitted in one pass over the values,
+ * which gives the same weights as {@link LeastSquaresFit#getWeights(double[])
+ * one fit per order}.
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+class SingleOrderFits {
+
+	private final int orders;
+
+	// samples x orders, so that one pass over the samples updates all orders
+	/** factor of each sample in the intercept of each order */
+	private final double[][] intercepts;
+	/** factor of each sample in the amplitude of each order */
+	private final double[][] amplitudes;
+	/** value of the term of each order for each sample */
+	private final double[][] features;
+
+	/**
+	 * @param fits
+	 *            fit of each order, with the intercept as the first term and
+	 *            the order as the second. All fits have the same samples.
+	 */
+	public SingleOrderFits(LeastSquaresFit[] fits) {
+		orders = fits.length;
+		int samples = orders == 0 ? 0 : fits[0].getSamples();
+		intercepts = new double[samples][fits.length];
+		amplitudes = new double[samples][fits.length];
+		features = new double[samples][fits.length];
+		for (int k = 0; k < fits.length; k++) {
+			LeastSquaresFit fit = fits[k];
+			if (fit.getTerms() != 2 || fit.getSamples() != samples)
+				throw new IllegalArgumentException("Fit " + k + " has "
+						+ fit.getTerms() + " terms and " + fit.getSamples()
+						+ " samples, expected 2 terms and " + samples);
+			for (int i = 0; i < samples; i++) {
+				intercepts[i][k] = fit.getSolver(0, i);
+				amplitudes[i][k] = fit.getSolver(1, i);
+				features[i][k] = fit.getFeature(i, 1);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of orders
+	 */
+	public int getOrders() {
+		return orders;
+	}
+
+	/**
+	 * @param values
+	 *            value of each sample
+	 * @return the amplitude of each order
+	 */
+	public double[] getAmplitudes(double[] values) {
+		double[] amps = new double[orders];
+		for (int i = 0; i < values.length; i++) {
+			double[] row = amplitudes[i];
+			double v = values[i];
+			for (int k = 0; k < orders; k++)
+				amps[k] += row[k] * v;
+		}
+		return amps;
+	}
+
+	/**
+	 * @param values
+	 *            value of each sample
+	 * @return the root mean squared error of the fit of each order
+	 */
+	public double[] getRootMeanSquaredErrors(double[] values) {
+		double[] intercept = new double[orders];
+		double[] amps = new double[orders];
+		for (int i = 0; i < values.length; i++) {
+			double[] rowIntercept = intercepts[i];
+			double[] rowAmp = amplitudes[i];
+			double v = values[i];
+			for (int k = 0; k < orders; k++) {
+				intercept[k] += rowIntercept[k] * v;
+				amps[k] += rowAmp[k] * v;
+			}
+		}
+		double[] sse = new double[orders];
+		for (int i = 0; i < values.length; i++) {
+			double[] row = features[i];
+			double v = values[i];
+			for (int k = 0; k < orders; k++) {
+				double error = -v + intercept[k] + row[k] * amps[k];
+				sse[k] += error * error;
+			}
+		}
+		for (int k = 0; k < orders; k++)
+			sse[k] = Math.sqrt(sse[k] / values.length);
+		return sse;
+	}
+}
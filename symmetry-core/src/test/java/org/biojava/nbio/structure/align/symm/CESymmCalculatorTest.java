@@ -0,0 +1,178 @@
+package org.biojava.nbio.structure.align.symm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.StructureTools;
+import org.biojava.nbio.structure.align.ce.CeMain;
+import org.biojava.nbio.structure.align.ce.CeParameters;
+import org.biojava.nbio.structure.align.model.AFPChain;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test that the options of CESymmCalculator give the same trace as the full
+ * matrices and the serial trace, on the duplicated atoms of CE-Symm.
+ */
+public class CESymmCalculatorTest {
+
+	private CeParameters params;
+	private Atom[] ca1;
+	private Atom[] ca2;
+
+	@Before
+	public void setUp() throws IOException, StructureException {
+		params = new CeParameters();
+		ca1 = StructureTools.getRepresentativeAtomArray(StructureTools
+				.getStructure("1TIM.A"));
+		ca2 = StructureTools.duplicateCA2(ca1);
+	}
+
+	@Test
+	public void testPackedStorage() throws StructureException {
+		CESymmCalculator full = new CESymmCalculator(params);
+		CESymmCalculator packed = new CESymmCalculator(params);
+		packed.setPackedStorage(true);
+
+		extractMasked(full);
+		extractMasked(packed);
+		assertFalse(full.isPackedMatrix());
+		assertTrue(packed.isPackedMatrix());
+
+		double[][] expected = full.getMatMatrix();
+		double[][] actual = packed.getMatMatrix();
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++)
+			assertArrayEquals("row " + i, expected[i], actual[i], 0.0);
+
+		full.traceFragmentMatrix(new AFPChain(CeMain.algorithmName), ca1, ca2);
+		packed.traceFragmentMatrix(new AFPChain(CeMain.algorithmName), ca1,
+				ca2);
+		assertSameTrace(full, packed);
+	}
+
+	@Test
+	public void testFlatStorage() throws StructureException {
+		CESymmCalculator full = new CESymmCalculator(params);
+		full.setFlatStorage(false);
+		// the default
+		CESymmCalculator flat = new CESymmCalculator(params);
+		assertTrue(flat.isFlatStorage());
+
+		trace(full);
+		trace(flat);
+		assertSameTrace(full, flat);
+	}
+
+	@Test
+	public void testParallelSeeds() throws StructureException {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (boolean pruning : new boolean[] { true, false }) {
+				CESymmCalculator serial = new CESymmCalculator(params);
+				serial.setPruning(pruning);
+				CESymmCalculator parallel = new CESymmCalculator(params);
+				parallel.setPruning(pruning);
+				parallel.setSeedPool(pool);
+
+				trace(serial);
+				trace(parallel);
+				assertSameTrace(serial, parallel);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testPruning() throws StructureException {
+		CESymmCalculator unpruned = new CESymmCalculator(params);
+		unpruned.setPruning(false);
+		CESymmCalculator pruned = new CESymmCalculator(params);
+		TraceStatistics statistics = new TraceStatistics();
+		pruned.setTraceStatistics(statistics);
+
+		trace(unpruned);
+		trace(pruned);
+		assertTrue(statistics.getPrunedTraces() > 0);
+		assertSameTrace(unpruned, pruned);
+	}
+
+	@Test
+	public void testCoarseTrace() throws StructureException {
+		CESymmCalculator full = new CESymmCalculator(params);
+		CESymmCalculator coarse = new CESymmCalculator(params);
+		coarse.setCoarseStep(2);
+		coarse.setCoarseValidation(true);
+
+		trace(full);
+		trace(coarse);
+		assertTrue("The coarse-to-fine trace did not grow past its seed",
+				coarse.getnBestTrace() > 1);
+		assertEquals(!hasSameTrace(full, coarse), coarse.isCoarseMismatch());
+		// the alignment can move to an equivalent one, but not shrink
+		assertEquals(full.getnBestTrace(), coarse.getnBestTrace());
+	}
+
+	/**
+	 * Calculate the similarity matrix and mask the identity alignment, as
+	 * CE-Symm does.
+	 */
+	private void extractMasked(CESymmCalculator calculator)
+			throws StructureException {
+		calculator.extractFragments(new AFPChain(CeMain.algorithmName), ca1,
+				ca2);
+		int n = ca1.length;
+		int winSize = params.getWinSize();
+		for (int i = 0; i < n; i++) {
+			for (int d = 1 - winSize; d < winSize; d++)
+				calculator.maskAfp(i, (i + d + n) % n);
+		}
+	}
+
+	/**
+	 * Trace the duplicated atoms with the identity alignment masked.
+	 */
+	private void trace(CESymmCalculator calculator) throws StructureException {
+		extractMasked(calculator);
+		calculator.traceFragmentMatrix(new AFPChain(CeMain.algorithmName), ca1,
+				ca2);
+	}
+
+	private static boolean hasSameTrace(CESymmCalculator expected,
+			CESymmCalculator actual) {
+		int nBest = expected.getnBestTrace();
+		if (nBest != actual.getnBestTrace()
+				|| expected.getBestTraceScore() != actual.getBestTraceScore())
+			return false;
+		for (int i = 0; i < nBest; i++) {
+			if (expected.getBestTrace1()[i] != actual.getBestTrace1()[i]
+					|| expected.getBestTrace2()[i] != actual.getBestTrace2()[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Both traces are equal, and longer than their seed AFP.
+	 */
+	private static void assertSameTrace(CESymmCalculator expected,
+			CESymmCalculator actual) {
+		int nBest = expected.getnBestTrace();
+		assertTrue("The trace did not grow past its seed", nBest > 1);
+		assertEquals(nBest, actual.getnBestTrace());
+		assertEquals(expected.getBestTraceScore(), actual.getBestTraceScore(),
+				0.0);
+		for (int i = 0; i < nBest; i++) {
+			assertEquals(expected.getBestTrace1()[i],
+					actual.getBestTrace1()[i]);
+			assertEquals(expected.getBestTrace2()[i],
+					actual.getBestTrace2()[i]);
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+package org.biojava.nbio.structure.align.symm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import javax.vecmath.AxisAngle4d;
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.Calc;
+import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.StructureTools;
+import org.biojava.nbio.structure.align.util.RotationAxis;
+import org.biojava.nbio.structure.geometry.SuperPositions;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test that the angles between fragment frames agree with the angles of the
+ * superposition of the fragments.
+ */
+public class FragmentFramesTest {
+
+	private static final int WIN_SIZE = 8;
+
+	private Point3d[] points;
+
+	@Before
+	public void setUp() throws IOException, StructureException {
+		Atom[] ca = StructureTools.getRepresentativeAtomArray(StructureTools
+				.getStructure("1TIM.A"));
+		points = Calc.atomsToPoints(ca);
+	}
+
+	@Test
+	public void testRigidRotation() {
+		double angle = 1.0;
+		Matrix4d transform = new Matrix4d();
+		transform.set(new AxisAngle4d(1, 2, 3, angle));
+		transform.setTranslation(new Vector3d(5, -3, 12));
+
+		Point3d[] moved = new Point3d[points.length];
+		for (int i = 0; i < points.length; i++) {
+			moved[i] = new Point3d(points[i]);
+			transform.transform(moved[i]);
+		}
+
+		FragmentFrames frames = new FragmentFrames(points, WIN_SIZE);
+		FragmentFrames movedFrames = new FragmentFrames(moved, WIN_SIZE);
+		assertEquals(points.length - WIN_SIZE + 1, frames.size());
+
+		int defined = 0;
+		for (int f = 0; f < frames.size(); f++) {
+			assertEquals(frames.isDefined(f), movedFrames.isDefined(f));
+			if (!frames.isDefined(f))
+				continue;
+			defined++;
+			assertEquals("fragment " + f, angle,
+					frames.getAngle(f, movedFrames, f), 1e-6);
+			assertEquals("fragment " + f, angle,
+					superpositionAngle(points, f, moved, f), 1e-6);
+		}
+		assertTrue(defined > frames.size() / 2);
+	}
+
+	@Test
+	public void testAgreementWithSuperposition() {
+		FragmentFrames frames = new FragmentFrames(points, WIN_SIZE);
+		double minAngle = Math.toRadians(CESymmCalculator.MIN_ANGLE);
+
+		int pairs = 0;
+		int mismatches = 0;
+		for (int f1 = 0; f1 < frames.size(); f1++) {
+			if (!frames.isDefined(f1))
+				continue;
+			// identical fragments have no rotation with either method
+			assertEquals(0, frames.getAngle(f1, frames, f1), 1e-6);
+
+			for (int f2 = f1 + WIN_SIZE; f2 < frames.size(); f2++) {
+				if (!frames.isDefined(f2))
+					continue;
+				double frame = frames.getAngle(f1, frames, f2);
+				double exact = superpositionAngle(points, f1, points, f2);
+				pairs++;
+				if ((frame < minAngle) != (exact < minAngle))
+					mismatches++;
+			}
+		}
+		assertTrue(pairs > 0);
+		assertTrue("The frames disagree with the superposition on "
+				+ mismatches + " of " + pairs + " pairs",
+				mismatches < 0.1 * pairs);
+	}
+
+	/**
+	 * Rotation angle of the superposition of two fragments.
+	 */
+	private static double superpositionAngle(Point3d[] points1, int f1,
+			Point3d[] points2, int f2) {
+		Point3d[] frag1 = new Point3d[WIN_SIZE];
+		Point3d[] frag2 = new Point3d[WIN_SIZE];
+		for (int i = 0; i < WIN_SIZE; i++) {
+			frag1[i] = new Point3d(points1[f1 + i]);
+			frag2[i] = new Point3d(points2[f2 + i]);
+		}
+		return RotationAxis.getAngle(SuperPositions.superpose(frag1, frag2));
+	}
+
+}
@@ -0,0 +1,107 @@
+package org.biojava.nbio.structure.align.symm.order;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.StructureTools;
+import org.biojava.nbio.structure.align.ce.CeMain;
+import org.biojava.nbio.structure.align.model.AFPChain;
+import org.biojava.nbio.structure.symmetry.internal.CESymmParameters;
+import org.biojava.nbio.structure.symmetry.internal.CeSymm;
+import org.biojava.nbio.structure.symmetry.internal.RefinerFailedException;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the selection of the aligned residues and the order of the
+ * AlignedSubsetOrderDetector.
+ */
+public class AlignedSubsetOrderDetectorTest {
+
+	private String name;
+	private Atom[] ca;
+
+	@Before
+	public void setUp() throws IOException, StructureException {
+		name = "1MER.A";
+		ca = StructureTools.getRepresentativeAtomArray(StructureTools
+				.getStructure(name));
+	}
+
+	@Test
+	public void testAlignedAtoms() {
+		int n = ca.length;
+		// positions past the end of ca are in the duplicated structure, and
+		// the positions after optLen are not part of the alignment
+		AFPChain afpChain = getAlignment(new int[][][] {
+				{ { 0, 1, 2, 30 }, { n + 1, n + 2, 7, 31 } },
+				{ { 5 }, { n + 9 } } }, new int[] { 3, 1 });
+
+		Atom[] aligned = AlignedSubsetOrderDetector.getAlignedAtoms(afpChain,
+				ca, 1);
+		assertArrayEquals(new Atom[] { ca[0], ca[1], ca[2], ca[5], ca[7],
+				ca[9] }, aligned);
+
+		// every other aligned residue, in the order of ca
+		aligned = AlignedSubsetOrderDetector.getAlignedAtoms(afpChain, ca, 2);
+		assertArrayEquals(new Atom[] { ca[0], ca[2], ca[7] }, aligned);
+
+		aligned = AlignedSubsetOrderDetector.getAlignedAtoms(afpChain, ca, 4);
+		assertArrayEquals(new Atom[] { ca[0], ca[7] }, aligned);
+	}
+
+	@Test
+	public void testEmptyAlignment() {
+		AFPChain afpChain = new AFPChain(CeMain.algorithmName);
+		assertEquals(0,
+				AlignedSubsetOrderDetector.getAlignedAtoms(afpChain, ca, 1).length);
+
+		afpChain = getAlignment(new int[0][][], new int[0]);
+		assertEquals(0,
+				AlignedSubsetOrderDetector.getAlignedAtoms(afpChain, ca, 1).length);
+
+		// without an alignment, all the atoms
+		assertArrayEquals(ca,
+				AlignedSubsetOrderDetector.getAlignedAtoms(null, ca, 1));
+		assertEquals((ca.length + 2) / 3,
+				AlignedSubsetOrderDetector.getAlignedAtoms(null, ca, 3).length);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidStride() {
+		new AlignedSubsetOrderDetector(new RotationOrderDetector(8), 0);
+	}
+
+	@Test
+	public void testSubsetOrder() throws StructureException,
+			RefinerFailedException {
+		AFPChain alignment = CeSymm.analyze(ca, new CESymmParameters())
+				.getSelfAlignment();
+		RotationOrderDetector detector = new RotationOrderDetector(8);
+		int fullOrder = detector.calculateOrder(alignment, ca);
+		assertEquals(name, 2, fullOrder);
+
+		AlignedSubsetOrderDetector subset = new AlignedSubsetOrderDetector(
+				detector);
+		subset.setValidation(true);
+		assertEquals(name, fullOrder, subset.calculateOrder(alignment, ca));
+
+		assertEquals(1, subset.getCalls());
+		assertEquals(1, subset.getValidated());
+		assertEquals(1.0, subset.getAgreement(), 0.0);
+		assertTrue(subset.getAtomFraction() > 0);
+		assertTrue(subset.getAtomFraction() <= 1);
+	}
+
+	private static AFPChain getAlignment(int[][][] optAln, int[] optLen) {
+		AFPChain afpChain = new AFPChain(CeMain.algorithmName);
+		afpChain.setOptAln(optAln);
+		afpChain.setOptLen(optLen);
+		afpChain.setBlockNum(optLen.length);
+		return afpChain;
+	}
+
+}
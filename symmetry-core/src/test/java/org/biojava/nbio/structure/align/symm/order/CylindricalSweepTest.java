@@ -0,0 +1,62 @@
+package org.biojava.nbio.structure.align.symm.order;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.StructureTools;
+import org.biojava.nbio.structure.align.model.AFPChain;
+import org.biojava.nbio.structure.align.symm.order.RotationOrderDetector.NeighborSearch;
+import org.biojava.nbio.structure.align.util.RotationAxis;
+import org.biojava.nbio.structure.symmetry.internal.CESymmParameters;
+import org.biojava.nbio.structure.symmetry.internal.CeSymm;
+import org.biojava.nbio.structure.symmetry.internal.RefinerFailedException;
+import org.junit.Test;
+
+/**
+ * Test that the parallel cylindrical sweep gives the same profile as the
+ * serial one.
+ */
+public class CylindricalSweepTest {
+
+	@Test
+	public void testParallelSweep() throws IOException, StructureException,
+			RefinerFailedException {
+		// both chains, large enough for the parallel sweep
+		String name = "1TIM";
+		Atom[] ca = StructureTools.getRepresentativeAtomArray(StructureTools
+				.getStructure(name));
+		assertTrue(ca.length >= CylindricalSweep.MIN_PARALLEL_ATOMS);
+		AFPChain alignment = CeSymm.analyze(ca, new CESymmParameters())
+				.getSelfAlignment();
+		RotationAxis axis = new RotationAxis(alignment);
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (NeighborSearch search : NeighborSearch.values()) {
+				RotationProfile serial = RotationProfile.sample(
+						new CylindricalSweep(ca, axis, search), 1.0);
+				RotationProfile parallel = RotationProfile.sample(
+						new CylindricalSweep(ca, axis, search), 1.0, pool);
+				assertArrayEquals(search.name(), serial.getAngles(),
+						parallel.getAngles(), 0.0);
+				assertArrayEquals(search.name(), serial.getDistances(),
+						parallel.getDistances(), 0.0);
+			}
+
+			RotationOrderDetector detector = new RotationOrderDetector(8);
+			detector.setCylindricalSweep(true);
+			RotationOrderDetector parallelDetector = new RotationOrderDetector(8);
+			parallelDetector.setCylindricalSweep(true);
+			parallelDetector.setSweepPool(pool);
+			assertEquals(detector.calculateOrder(alignment, ca),
+					parallelDetector.calculateOrder(alignment, ca));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+}
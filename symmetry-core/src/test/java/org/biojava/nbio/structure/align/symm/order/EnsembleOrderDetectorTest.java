@@ -0,0 +1,124 @@
+package org.biojava.nbio.structure.align.symm.order;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.align.ce.CeMain;
+import org.biojava.nbio.structure.align.model.AFPChain;
+import org.biojava.nbio.structure.symmetry.internal.OrderDetector;
+import org.biojava.nbio.structure.symmetry.internal.RefinerFailedException;
+import org.junit.Test;
+
+/**
+ * Test the deadlines of the members of an EnsembleOrderDetector.
+ */
+public class EnsembleOrderDetectorTest {
+
+	/** Deadline of each member, in milliseconds */
+	private static final long TIMEOUT = 200;
+	/** Time a slow member would need, in milliseconds */
+	private static final long SLOW = 30000;
+
+	private final OrderDetectionContext context = new OrderDetectionContext(
+			new AFPChain(CeMain.algorithmName), new Atom[0]);
+
+	@Test
+	public void testSleepingMember() throws RefinerFailedException,
+			InterruptedException {
+		final CountDownLatch interrupted = new CountDownLatch(1);
+		OrderDetector sleeping = new OrderDetector() {
+			@Override
+			public int calculateOrder(AFPChain afpChain, Atom[] ca)
+					throws RefinerFailedException {
+				try {
+					Thread.sleep(SLOW);
+				} catch (InterruptedException e) {
+					interrupted.countDown();
+					throw new RefinerFailedException("Interrupted", e);
+				}
+				return 2;
+			}
+		};
+
+		// a single thread, so the fast member waits for the sleeping one
+		EnsembleOrderDetector ensemble = new EnsembleOrderDetector(1);
+		try {
+			ensemble.addDetector(sleeping, 10);
+			ensemble.addDetector(new FixedOrderDetector(3));
+			ensemble.setTimeout(TIMEOUT);
+
+			for (int run = 0; run < 2; run++) {
+				long start = System.nanoTime();
+				EnsembleOrderDetector.Result result = ensemble.detect(context);
+				long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+						- start);
+
+				assertEquals(3, result.getOrder());
+				assertTrue(result.isTimedOut(0));
+				assertFalse(result.isTimedOut(1));
+				assertTrue("The ensemble took " + time + " ms",
+						time < SLOW / 10);
+			}
+			// the sleeping member released the thread each time
+			assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+		} finally {
+			ensemble.shutdown();
+		}
+	}
+
+	@Test
+	public void testQueuedMember() {
+		// ignores the interruption and keeps the only thread
+		OrderDetector busy = new OrderDetector() {
+			@Override
+			public int calculateOrder(AFPChain afpChain, Atom[] ca) {
+				long end = System.nanoTime()
+						+ TimeUnit.MILLISECONDS.toNanos(SLOW / 10);
+				while (System.nanoTime() < end)
+					;
+				return 2;
+			}
+		};
+
+		EnsembleOrderDetector ensemble = new EnsembleOrderDetector(1);
+		try {
+			ensemble.addDetector(busy);
+			ensemble.addDetector(new FixedOrderDetector(3));
+			ensemble.setTimeout(TIMEOUT);
+
+			long start = System.nanoTime();
+			try {
+				ensemble.detect(context);
+				fail("No member can finish before its deadline");
+			} catch (RefinerFailedException e) {
+				// expected
+			}
+			long time = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+					- start);
+			assertTrue("The ensemble took " + time + " ms",
+					time < SLOW / 20);
+		} finally {
+			ensemble.shutdown();
+		}
+	}
+
+	/**
+	 * Returns the same order for every structure.
+	 */
+	private static class FixedOrderDetector implements OrderDetector {
+		private final int order;
+
+		public FixedOrderDetector(int order) {
+			this.order = order;
+		}
+
+		@Override
+		public int calculateOrder(AFPChain afpChain, Atom[] ca) {
+			return order;
+		}
+	}
+
+}
@@ -0,0 +1,65 @@
+package org.biojava.nbio.structure.align.symm.order;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.StructureTools;
+import org.biojava.nbio.structure.align.ce.CeMain;
+import org.biojava.nbio.structure.align.model.AFPChain;
+import org.biojava.nbio.structure.symmetry.internal.RefinerFailedException;
+import org.junit.Test;
+
+/**
+ * Test the order of the MultipassOrderDetector and its passes.
+ */
+public class MultipassOrderDetectorTest {
+
+	@Test
+	public void testCalculateOrder() throws IOException, StructureException,
+			RefinerFailedException {
+		String name;
+		MultipassOrderDetector detector = new MultipassOrderDetector(8);
+
+		Atom[] ca1;
+		MultipassOrderDetector.Result result;
+
+		name = "1MER.A";
+		ca1 = StructureTools.getRepresentativeAtomArray(StructureTools
+				.getStructure(name));
+		result = detector.detect(ca1);
+		assertEquals(name, 2, result.getOrder());
+
+		name = "d1ijqa1";
+		ca1 = StructureTools.getRepresentativeAtomArray(StructureTools
+				.getStructure(name));
+		result = detector.detect(ca1);
+		assertEquals(name, 6, result.getOrder());
+		// each pass also masks the inverse alignment
+		assertTrue(name, result.getPasses().size() < 5);
+	}
+
+	@Test
+	public void testIgnoresAlignment() throws IOException, StructureException,
+			RefinerFailedException {
+		String name = "1MER.A";
+		Atom[] ca1 = StructureTools.getRepresentativeAtomArray(StructureTools
+				.getStructure(name));
+		MultipassOrderDetector detector = new MultipassOrderDetector(8);
+
+		// the structure is aligned from scratch, even without an alignment
+		assertEquals(name, detector.detect(ca1).getOrder(),
+				detector.calculateOrder(new AFPChain(CeMain.algorithmName), ca1));
+	}
+
+	@Test
+	public void testShortStructure() throws RefinerFailedException {
+		MultipassOrderDetector detector = new MultipassOrderDetector(8);
+		MultipassOrderDetector.Result result = detector.detect(new Atom[0]);
+		assertEquals(1, result.getOrder());
+		assertTrue(result.getPasses().isEmpty());
+	}
+
+}
@@ -0,0 +1,94 @@
+package org.biojava.nbio.structure.align.symm.order;
+
+import static org.biojava.nbio.structure.align.symm.order.RotationOrderDetector.RotationOrderMethod.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.StructureTools;
+import org.biojava.nbio.structure.align.model.AFPChain;
+import org.biojava.nbio.structure.symmetry.internal.CESymmParameters;
+import org.biojava.nbio.structure.symmetry.internal.CeSymm;
+import org.biojava.nbio.structure.symmetry.internal.RefinerFailedException;
+import org.junit.Test;
+
+/**
+ * Test that the detectors run in one context share its axis and profiles.
+ */
+public class OrderDetectionContextTest {
+
+	@Test
+	public void testSharedProfile() throws IOException, StructureException,
+			RefinerFailedException {
+		String name = "1MER.A";
+		Atom[] ca = StructureTools.getRepresentativeAtomArray(StructureTools
+				.getStructure(name));
+		AFPChain alignment = CeSymm.analyze(ca, new CESymmParameters())
+				.getSelfAlignment();
+
+		OrderDetectionContext context = new OrderDetectionContext(alignment, ca);
+		assertEquals(0, context.getProfileCount());
+		assertSame(context.getAxis(), context.getAxis());
+
+		RotationOrderDetector[] detectors = new RotationOrderDetector[] {
+				new RotationOrderDetector(8, HARMONICS),
+				new RotationOrderDetector(8, HARMONICS_FLOATING),
+				new RotationOrderDetector(8, SINGLE_CUSP_FIXED_AMP), };
+		RotationProfile profile = null;
+		for (RotationOrderDetector detector : detectors) {
+			int order = context.calculateOrder(detector);
+			// the same order as in a context of its own
+			assertEquals(detector.toString(),
+					detector.calculateOrder(alignment, ca), order);
+
+			// one profile, calculated by the first detector
+			assertEquals(1, context.getProfileCount());
+			if (profile == null)
+				profile = detector.getRotationProfile(context);
+			assertSame(profile, detector.getRotationProfile(context));
+		}
+
+		// a subset context has its own profiles, but the same axis
+		OrderDetectionContext subset = context.withAtoms(ca);
+		assertSame(context.getAxis(), subset.getAxis());
+		assertEquals(0, subset.getProfileCount());
+	}
+
+	@Test
+	public void testSamplerParameters() throws IOException,
+			StructureException, RefinerFailedException {
+		Atom[] ca = StructureTools.getRepresentativeAtomArray(StructureTools
+				.getStructure("1MER.A"));
+		AFPChain alignment = CeSymm.analyze(ca, new CESymmParameters())
+				.getSelfAlignment();
+		OrderDetectionContext context = new OrderDetectionContext(alignment, ca);
+
+		// samplers with the same parameters share the profile
+		AdaptiveRotationSampler sampler = new AdaptiveRotationSampler(8);
+		AdaptiveRotationSampler same = new AdaptiveRotationSampler(8,
+				AdaptiveRotationSampler.DEFAULT_COARSE_INCR,
+				AdaptiveRotationSampler.DEFAULT_TOLERANCE, false);
+		AdaptiveRotationSampler finer = new AdaptiveRotationSampler(8,
+				AdaptiveRotationSampler.DEFAULT_COARSE_INCR,
+				AdaptiveRotationSampler.DEFAULT_TOLERANCE / 2, false);
+
+		RotationOrderDetector detector = new RotationOrderDetector(8);
+		detector.setCylindricalSweep(true);
+		detector.setAdaptiveSampler(sampler);
+		int order = context.calculateOrder(detector);
+		assertEquals(1, context.getProfileCount());
+
+		detector.setAdaptiveSampler(same);
+		assertEquals(order, context.calculateOrder(detector));
+		assertEquals(1, context.getProfileCount());
+		assertEquals(0, same.getProfileCount());
+
+		detector.setAdaptiveSampler(finer);
+		context.calculateOrder(detector);
+		assertEquals(2, context.getProfileCount());
+		assertEquals(1, finer.getProfileCount());
+	}
+
+}
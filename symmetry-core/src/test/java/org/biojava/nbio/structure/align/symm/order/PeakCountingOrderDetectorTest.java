@@ -0,0 +1,110 @@
+package org.biojava.nbio.structure.align.symm.order;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.biojava.nbio.structure.Atom;
+import org.biojava.nbio.structure.StructureException;
+import org.biojava.nbio.structure.StructureTools;
+import org.biojava.nbio.structure.align.model.AFPChain;
+import org.biojava.nbio.structure.align.util.RotationAxis;
+import org.biojava.nbio.structure.symmetry.internal.CESymmParameters;
+import org.biojava.nbio.structure.symmetry.internal.CeSymm;
+import org.junit.Test;
+
+/**
+ * Test the circular smoothing and peak counting, and the mirrored profile of
+ * the PeakCountingOrderDetector.
+ */
+public class PeakCountingOrderDetectorTest {
+
+	@Test
+	public void testCountCircularPeaks() {
+		assertEquals(2, PeakCountingOrderDetector.countCircularPeaks(
+				new double[] { 0, 1, 2, 1, 0, 1, 2, 1 }));
+		// flat profile
+		assertEquals(0, PeakCountingOrderDetector.countCircularPeaks(
+				new double[] { 1, 1, 1, 1 }));
+	}
+
+	@Test
+	public void testCountCircularPeaksPlateau() {
+		// a plateau between two decreases is one peak
+		assertEquals(2, PeakCountingOrderDetector.countCircularPeaks(
+				new double[] { 0, 2, 2, 2, 0, 1, 0, 0 }));
+		// a plateau followed by an increase is not a peak
+		assertEquals(1, PeakCountingOrderDetector.countCircularPeaks(
+				new double[] { 0, 1, 1, 2, 0, 0 }));
+	}
+
+	@Test
+	public void testCountCircularPeaksWrapAround() {
+		// peak at the first sample
+		assertEquals(1, PeakCountingOrderDetector.countCircularPeaks(
+				new double[] { 5, 3, 1, 0, 1, 3 }));
+		// plateau across the end of the profile
+		assertEquals(1, PeakCountingOrderDetector.countCircularPeaks(
+				new double[] { 2, 1, 0, 1, 2, 2 }));
+		assertEquals(2, PeakCountingOrderDetector.countCircularPeaks(
+				new double[] { 2, 2, 0, 2, 2, 0 }));
+	}
+
+	@Test
+	public void testSmoothCircular() {
+		// constant profiles stay constant
+		double[] flat = new double[20];
+		Arrays.fill(flat, 3);
+		assertArrayEquals(flat,
+				PeakCountingOrderDetector.smoothCircular(flat, 0.3), 1e-12);
+
+		// a spike at the first sample spreads to both ends of the profile
+		int n = 36;
+		double[] spike = new double[n];
+		spike[0] = 1;
+		double[] smoothed = PeakCountingOrderDetector.smoothCircular(spike, 0.2);
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			sum += smoothed[i];
+			if (i > 0)
+				assertEquals("sample " + i, smoothed[i], smoothed[n - i], 1e-12);
+		}
+		assertEquals(1, sum, 1e-12);
+		assertTrue(smoothed[n - 1] > 0);
+		assertEquals(1, PeakCountingOrderDetector.countCircularPeaks(smoothed));
+
+		// smoothing does not depend on where the profile starts
+		double[] shifted = new double[n];
+		shifted[5] = 1;
+		double[] smoothedShifted = PeakCountingOrderDetector.smoothCircular(
+				shifted, 0.2);
+		for (int i = 0; i < n; i++)
+			assertEquals("sample " + i, smoothed[i],
+					smoothedShifted[(i + 5) % n], 1e-12);
+	}
+
+	@Test
+	public void testMirroredProfile() throws IOException, StructureException {
+		String name = "1MER.A";
+		Atom[] ca = StructureTools.getRepresentativeAtomArray(StructureTools
+				.getStructure(name));
+		AFPChain alignment = CeSymm.analyze(ca, new CESymmParameters())
+				.getSelfAlignment();
+		RotationAxis axis = new RotationAxis(alignment);
+
+		PeakCountingOrderDetector detector = new PeakCountingOrderDetector(8);
+		RotationProfile mirrored = detector.getRotationProfile(ca, axis);
+
+		double[] angles = RotationOrderDetector.getSampleAngles(1);
+		RotationProfile full = new OrderDetectionContext(ca, axis)
+				.getRotationProfile(angles,
+						RotationOrderDetector.DEFAULT_NEIGHBOR_SEARCH, true,
+						null, null);
+
+		assertArrayEquals(name, full.getAngles(), mirrored.getAngles(), 0.0);
+		assertArrayEquals(name, full.getDistances(), mirrored.getDistances(),
+				1e-6);
+	}
+
+}
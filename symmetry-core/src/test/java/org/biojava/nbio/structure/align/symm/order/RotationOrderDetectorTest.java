@@ -14,6 +14,9 @@ import org.biojava.nbio.structure.align.model.AFPChain;
 
 import static org.biojava.nbio.structure.align.symm.order.RotationOrderDetector.RotationOrderMethod.*;
 
+import org.biojava.nbio.structure.align.symm.order.RotationOrderDetector.NeighborSearch;
+import org.biojava.nbio.structure.align.symm.order.RotationOrderDetector.RotationOrderMethod;
+
 import org.biojava.nbio.structure.align.util.RotationAxis;
 import org.biojava.nbio.structure.scop.ScopFactory;
 import org.biojava.nbio.structure.symmetry.internal.CESymmParameters;
@@ -423,4 +426,140 @@ public class RotationOrderDetectorTest {
 		assertArrayEquals(name, expectedHarmonics, coefs, 1e-2);
 	}
 
+	@Test
+	public void testNeighborSearch() throws IOException, StructureException {
+		// 1TIM.A is large enough to use the grid
+		for (String name : new String[] { "1MER.A", "d1ijqa1", "1TIM.A" }) {
+			Atom[] ca1 = StructureTools.getRepresentativeAtomArray(StructureTools
+					.getStructure(name));
+			AFPChain alignment = CeSymm.analyze(ca1, params).getSelfAlignment();
+			RotationAxis axis = new RotationAxis(alignment);
+
+			double[] bruteForce = RotationOrderDetector.sampleRotations(ca1,
+					axis, 5, NeighborSearch.BRUTE_FORCE).getValue();
+			double[] grid = RotationOrderDetector.sampleRotations(ca1, axis,
+					5, NeighborSearch.GRID).getValue();
+			// the grid is searched with a copy rotated backwards, which only
+			// differs from the rotated copy by rounding
+			assertArrayEquals(name, bruteForce, grid, 1e-10);
+
+			// a flat structure has a bounding box without volume
+			Atom[] flat = StructureTools.cloneAtomArray(ca1);
+			for (Atom atom : flat)
+				atom.setZ(0);
+			Atom[] shifted = StructureTools.cloneAtomArray(flat);
+			for (Atom atom : shifted)
+				atom.setX(atom.getX() + 1);
+			assertEquals(name, RotationOrderDetector.superpositionDistance(flat,
+					shifted, NeighborSearch.BRUTE_FORCE),
+					RotationOrderDetector.superpositionDistance(flat, shifted,
+							NeighborSearch.GRID), 0.0);
+		}
+	}
+
+	@Test
+	public void testSingleOrderFits() throws IOException, StructureException,
+			RefinerFailedException {
+		String name = "d1ijqa1";
+		Atom[] ca1 = StructureTools.getRepresentativeAtomArray(StructureTools
+				.getStructure(name));
+		AFPChain alignment = CeSymm.analyze(ca1, params).getSelfAlignment();
+		RotationAxis axis = new RotationAxis(alignment);
+
+		for (RotationOrderMethod method : new RotationOrderMethod[] {
+				SINGLE_HARMONIC_AMP, SINGLE_CUSP_AMP, SINGLE_CUSP_FIXED_SSE }) {
+			RotationOrderDetector detector = new RotationOrderDetector(8, method);
+			RotationProfile profile = detector.getRotationProfile(ca1, axis);
+			double[] angles = profile.getAngles();
+			double[] distances = profile.getDistances();
+
+			// all orders at once give the same fits as one order at a time
+			double[] amps = detector.trySingleOrdersByAmp(profile);
+			double[] sses = detector.trySingleOrdersBySSE(profile);
+			assertEquals(8, amps.length);
+			assertEquals(8, sses.length);
+			for (int order = 1; order <= 8; order++) {
+				int[] orders = new int[] { 0, order };
+				assertEquals(method + " " + order,
+						detector.getWeightsForFit(angles, distances, orders)[1],
+						amps[order - 1], 0.0);
+				assertEquals(method + " " + order,
+						detector.getSSEForFit(angles, distances, orders),
+						sses[order - 1], 0.0);
+			}
+		}
+	}
+
+	@Test
+	public void testCalculateOrderByFourier() throws IOException,
+			StructureException, RefinerFailedException {
+		String name;
+		FourierOrderDetector detector = new FourierOrderDetector(8);
+
+		// Perform alignment to determine axis
+		Atom[] ca1;
+		AFPChain alignment;
+		int order;
+
+		name = "1MER.A";
+		ca1 = StructureTools.getRepresentativeAtomArray(StructureTools
+				.getStructure(name));
+		alignment = CeSymm.analyze(ca1, params).getSelfAlignment();
+		order = detector.calculateOrder(alignment, ca1);
+		assertEquals(name, 2, order);
+
+		name = "d1ijqa1";
+		ca1 = StructureTools.getRepresentativeAtomArray(StructureTools
+				.getStructure(name));
+		alignment = CeSymm.analyze(ca1, params).getSelfAlignment();
+		order = detector.calculateOrder(alignment, ca1);
+		assertEquals(name, 6, order);
+
+		name = "1TIM.A";
+		ca1 = StructureTools.getRepresentativeAtomArray(StructureTools
+				.getStructure(name));
+		alignment = CeSymm.analyze(ca1, params).getSelfAlignment();
+		order = detector.calculateOrder(alignment, ca1);
+		// tough case: the TIM barrel has eight (beta/alpha) units, but the
+		// CE-Symm axis only approximates its pseudo-symmetry, and the fitted
+		// detectors disagree (1 and 6 above). Any divisor of 8 is consistent
+		// with the barrel, so no single order is asserted.
+		assertTrue(name + " order " + order, order >= 1 && 8 % order == 0);
+	}
+
+	@Test
+	public void testFourierProfiles() {
+		FourierOrderDetector detector = new FourierOrderDetector(8);
+		for (int order = 1; order <= 8; order++) {
+			RotationProfile profile = getCuspProfile(order,
+					detector.getSamples());
+			assertEquals("C" + order, order, detector.calculateOrder(profile));
+		}
+	}
+
+	@Test
+	public void testFourierMaxOrder() {
+		FourierOrderDetector detector = new FourierOrderDetector(8);
+		detector.setMaxOrder(20);
+		assertEquals(20, detector.getMaxOrder());
+		assertEquals(new FourierOrderDetector(20).getSamples(),
+				detector.getSamples());
+		assertTrue(detector.getSamples() >= 4 * 20);
+	}
+
+	/**
+	 * Profile of a structure with the given order: the distance of a point
+	 * at unit radius to its copy rotated by each angle. It has cusps at the
+	 * symmetric rotations, and only harmonics at multiples of the order.
+	 */
+	private static RotationProfile getCuspProfile(int order, int samples) {
+		double[] angles = new double[samples / 2 + 1];
+		double[] distances = new double[angles.length];
+		for (int k = 0; k < angles.length; k++) {
+			angles[k] = 2 * Math.PI * k / samples;
+			distances[k] = 2 * Math.abs(Math.sin(order * angles[k] / 2));
+		}
+		return new RotationProfile(angles, distances);
+	}
+
 }